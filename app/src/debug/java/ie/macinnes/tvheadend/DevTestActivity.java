@@ -49,7 +49,6 @@ public class DevTestActivity extends Activity {
         setContentView(R.layout.activity_dev_test);
 
         mAccountManager = AccountManager.get(getBaseContext());
-        mClient = TVHClient.getInstance(getBaseContext());
     }
 
     private void setRunning() {
@@ -109,7 +108,7 @@ public class DevTestActivity extends Activity {
             String httpPath = mAccountManager.getUserData(account, Constants.KEY_HTTP_PATH);
             appendDebugOutput("Account HTTP Path: " + httpPath);
 
-            mClient.setConnectionInfo(hostname, httpPort, httpPath, username, password);
+            mClient = TVHClient.getInstance(getBaseContext(), account);
         }
 
         setOk();
@@ -25,9 +25,25 @@ public class Constants {
 
     // Sync Things
     public static final String SYNC_EXTRAS_QUICK = "QUICK";
+    public static final String SYNC_EXTRAS_FULL = "FULL";
+
+    // Sync Progress Broadcasts
+    public static final String ACTION_SYNC_PROGRESS = "ie.macinnes.tvheadend.SYNC_PROGRESS";
+    public static final String PERMISSION_SYNC_PROGRESS = "ie.macinnes.tvheadend.permission.SYNC_PROGRESS";
+    public static final String EXTRA_ACCOUNT_NAME = "ACCOUNT-NAME";
+    public static final String EXTRA_SYNC_STAGE = "SYNC-STAGE";
+    public static final String EXTRA_SYNC_STAGE_COUNT = "SYNC-STAGE-COUNT";
+    public static final String EXTRA_SYNC_STAGE_COMPLETE = "SYNC-STAGE-COMPLETE";
+    public static final String EXTRA_SYNC_CHANNELS_DONE = "SYNC-CHANNELS-DONE";
+    public static final String EXTRA_SYNC_CHANNELS_TOTAL = "SYNC-CHANNELS-TOTAL";
 
     // Preferences Files and Keys
     public static final String PREFERENCE_TVHEADEND = "tvheadend";
+    public static final String PREFERENCE_EPG_WATERMARKS = "epg-watermarks";
+    public static final String PREFERENCE_TUNE_HISTORY = "tune-history";
+    public static final String PREFERENCE_HTTP_VALIDATORS = "http-validators";
+    public static final String PREFERENCE_SYNC_PROGRESS = "sync-progress";
+    public static final String PREFERENCE_LOGO_INDEX = "logo-index";
 
     // Session Selection Preference Keys and Values
     public static final String KEY_SESSION = "SESSION";
@@ -43,6 +59,7 @@ public class Constants {
     public static final String KEY_USERNAME = "USERNAME";
     public static final String KEY_PASSWORD = "PASSWORD";
     public static final String KEY_ERROR_MESSAGE = "ERROR-MESSAGE";
+    public static final String KEY_RECENT_CHANNELS = "RECENT-CHANNELS";
 
     // Deinterlace Preferences Keys and Values
     public static final String KEY_DEINTERLACE_ENABLED = "DEINTERLACE-ENABLED";
@@ -0,0 +1,93 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the channels most recently tuned to, most recent first. Written by the
+ * TvInputService and read by the sync process, hence the multi process preferences.
+ */
+public class TuneHistory {
+    private static final int MAX_ENTRIES = 10;
+
+    public static class Entry {
+        public final long channelId;
+        public final long tunedMillis;
+
+        public Entry(long channelId, long tunedMillis) {
+            this.channelId = channelId;
+            this.tunedMillis = tunedMillis;
+        }
+    }
+
+    public static synchronized void recordTune(Context context, Uri channelUri) {
+        long channelId = ContentUris.parseId(channelUri);
+
+        List<Entry> entries = getEntries(context);
+        List<String> parts = new ArrayList<>();
+
+        parts.add(channelId + ":" + System.currentTimeMillis());
+
+        for (Entry entry : entries) {
+            if (parts.size() >= MAX_ENTRIES) {
+                break;
+            }
+
+            if (entry.channelId != channelId) {
+                parts.add(entry.channelId + ":" + entry.tunedMillis);
+            }
+        }
+
+        getSharedPreferences(context).edit()
+                .putString(Constants.KEY_RECENT_CHANNELS, TextUtils.join(",", parts))
+                .apply();
+    }
+
+    public static List<Entry> getEntries(Context context) {
+        List<Entry> entries = new ArrayList<>();
+
+        String recentChannels = getSharedPreferences(context).getString(Constants.KEY_RECENT_CHANNELS, null);
+
+        if (TextUtils.isEmpty(recentChannels)) {
+            return entries;
+        }
+
+        for (String part : recentChannels.split(",")) {
+            String[] fields = part.split(":");
+
+            try {
+                entries.add(new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1])));
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                // Ignore any corrupt entries
+            }
+        }
+
+        return entries;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static SharedPreferences getSharedPreferences(Context context) {
+        return context.getSharedPreferences(
+                Constants.PREFERENCE_TUNE_HISTORY, Context.MODE_MULTI_PROCESS);
+    }
+}
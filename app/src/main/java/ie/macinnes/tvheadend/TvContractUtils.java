@@ -14,26 +14,34 @@ under the License.
 */
 package ie.macinnes.tvheadend;
 
+import android.accounts.Account;
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.media.tv.TvContract;
 import android.media.tv.TvContract.Channels;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import ie.macinnes.tvheadend.model.Channel;
 import ie.macinnes.tvheadend.model.ChannelList;
 import ie.macinnes.tvheadend.model.Program;
 import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.model.ProgramSnapshot;
 
 public class TvContractUtils {
     private static final String TAG = TvContractUtils.class.getName();
 
+    private static final int MAX_DELETES_PER_BATCH = 500;
+
     public static String getInputId() {
         ComponentName componentName = new ComponentName(
                 "ie.macinnes.tvheadend",
@@ -61,18 +69,81 @@ public class TvContractUtils {
         }
     }
 
+    /**
+     * @param projection Must include {@link Channels#COLUMN_INTERNAL_PROVIDER_DATA}.
+     * @return only the channels synced from the given account.
+     */
+    public static ChannelList getChannels(Context context, Account account, String[] projection) {
+        ChannelList channelList = new ChannelList();
+
+        for (Channel channel : getChannels(context, projection)) {
+            Channel.InternalProviderData providerData = channel.getInternalProviderData();
+
+            if (providerData != null && account.name.equals(providerData.getAccountName())) {
+                channelList.add(channel);
+            }
+        }
+
+        return channelList;
+    }
+
+    public static int getChannelCount(Context context, Account account) {
+        Uri channelsUri = TvContract.buildChannelsUriForInput(getInputId());
+
+        ContentResolver resolver = context.getContentResolver();
+
+        String[] projection = {Channels._ID, Channels.COLUMN_INTERNAL_PROVIDER_DATA};
+
+        int count = 0;
+
+        try (Cursor cursor = resolver.query(channelsUri, projection, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                if (isOwnedBy(cursor, 1, account)) {
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
     public static void removeChannels(Context context) {
+        removeChannels(context, null);
+    }
+
+    /**
+     * Removes the channels synced from the given account, leaving any other account's alone, or
+     * every channel if account is null.
+     */
+    public static void removeChannels(Context context, Account account) {
         Uri channelsUri = TvContract.buildChannelsUriForInput(getInputId());
 
         ContentResolver resolver = context.getContentResolver();
 
-        String[] projection = {Channels._ID, Channels.COLUMN_ORIGINAL_NETWORK_ID};
+        String[] projection = {Channels._ID, Channels.COLUMN_INTERNAL_PROVIDER_DATA};
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
 
         try (Cursor cursor = resolver.query(channelsUri, projection, null, null, null)) {
             while (cursor != null && cursor.moveToNext()) {
+                if (account != null && !isOwnedBy(cursor, 1, account)) {
+                    continue;
+                }
+
                 long rowId = cursor.getLong(0);
                 Log.d(TAG, "Deleting channel: " + rowId);
-                resolver.delete(TvContract.buildChannelUri(rowId), null, null);
+                ops.add(ContentProviderOperation.newDelete(TvContract.buildChannelUri(rowId)).build());
+            }
+        }
+
+        // Deletes are tiny, so even a large lineup fits comfortably in a few transactions
+        for (int i = 0; i < ops.size(); i += MAX_DELETES_PER_BATCH) {
+            try {
+                resolver.applyBatch(Constants.CONTENT_AUTHORITY,
+                        new ArrayList<>(ops.subList(i, Math.min(i + MAX_DELETES_PER_BATCH, ops.size()))));
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(TAG, "Failed to delete channels", e);
+                return;
             }
         }
     }
@@ -88,29 +159,75 @@ public class TvContractUtils {
         }
     }
 
+    /**
+     * Loads the sync relevant columns of every program we own, across all channels, in a single
+     * query.
+     */
+    public static ProgramSnapshot getProgramSnapshot(Context context) {
+        ContentResolver resolver = context.getContentResolver();
+
+        try (Cursor cursor = resolver.query(TvContract.Programs.CONTENT_URI,
+                ProgramSnapshot.PROJECTION, null, null, ProgramSnapshot.SORT_ORDER)) {
+            return ProgramSnapshot.fromCursor(cursor);
+        }
+    }
+
     public static ProgramList getPrograms(Context context, Uri channelUri) {
         return getPrograms(context, getChannelFromChannelUri(context, channelUri));
     }
 
-    public static SparseArray<Long> buildChannelMap(Context context, ChannelList channelList) {
-        // Create a map from original network ID to channel row ID for existing channels.
+    public static SparseArray<Long> buildChannelMap(Context context, Account account, ChannelList channelList) {
+        return buildChannelMap(context, account, channelList, null);
+    }
+
+    /**
+     * @param contentHashes If not null, filled with each existing channel's content hash, keyed
+     *                      by original network ID.
+     */
+    public static SparseArray<Long> buildChannelMap(Context context, Account account, ChannelList channelList, SparseArray<Long> contentHashes) {
+        // Create a map from original network ID to channel row ID for the account's existing
+        // channels. Other accounts' channels share the input, and mustn't be matched or deleted.
         SparseArray<Long> channelMap = new SparseArray<>();
         Uri channelsUri = TvContract.buildChannelsUriForInput(TvContractUtils.getInputId());
-        String[] projection = {TvContract.Channels._ID, TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID};
+        String[] projection = {
+                TvContract.Channels._ID,
+                TvContract.Channels.COLUMN_ORIGINAL_NETWORK_ID,
+                TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA
+        };
 
         ContentResolver resolver = context.getContentResolver();
 
         try (Cursor cursor = resolver.query(channelsUri, projection, null, null, null)) {
             while (cursor != null && cursor.moveToNext()) {
+                if (!isOwnedBy(cursor, 2, account)) {
+                    continue;
+                }
+
                 long rowId = cursor.getLong(0);
                 int originalNetworkId = cursor.getInt(1);
                 channelMap.put(originalNetworkId, rowId);
+
+                if (contentHashes != null && !cursor.isNull(2)) {
+                    contentHashes.put(originalNetworkId,
+                            Channel.InternalProviderData.fromString(cursor.getString(2)).getContentHash());
+                }
             }
         }
 
         return channelMap;
     }
 
+    private static boolean isOwnedBy(Cursor cursor, int providerDataIndex, Account account) {
+        if (cursor.isNull(providerDataIndex)) {
+            return false;
+        }
+
+        Channel.InternalProviderData providerData = Channel.InternalProviderData.fromString(
+                cursor.getString(providerDataIndex));
+
+        return account.name.equals(providerData.getAccountName());
+    }
+
     public static Program getCurrentProgram(Context context, Uri channelUri) {
         ContentResolver resolver = context.getContentResolver();
 
@@ -333,12 +333,16 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
             final String accountHttpPort = args.getString(Constants.KEY_HTTP_PORT);
             final String accountHttpPath = args.getString(Constants.KEY_HTTP_PATH);
 
+            // A throwaway client, the account doesn't exist yet
+            final TVHClient client = new TVHClient(getActivity(), accountHostname, accountHttpPort, accountHttpPath, accountName, accountPassword);
+
             // Validate the User and Pass by connecting to TVHeadend
             Response.Listener<JSONObject> listener = new Response.Listener<JSONObject>() {
 
                 @Override
                 public void onResponse(JSONObject response) {
                     Log.d(TAG, "Successfully validated credentials");
+                    client.close();
 
                     // Store the account
                     final Account account = new Account(accountName, accountType);
@@ -369,6 +373,7 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                 @Override
                 public void onErrorResponse(VolleyError error) {
                     Log.d(TAG, "Failed to validate credentials");
+                    client.close();
 
                     Bundle args = getArguments();
 
@@ -393,10 +398,6 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
                 }
             };
 
-            TVHClient client = TVHClient.getInstance(getActivity());
-
-            client.setConnectionInfo(accountHostname, accountHttpPort, accountHttpPath, accountName, accountPassword);
-
             client.getServerInfo(listener, errorListener);
         }
     }
@@ -19,6 +19,7 @@ import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
 import android.app.Service;
 import android.content.ContentResolver;
+import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
@@ -27,6 +28,11 @@ import android.util.Log;
 
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.client.ValidatorStore;
+import ie.macinnes.tvheadend.sync.EpgWatermarks;
+import ie.macinnes.tvheadend.sync.LogoIndex;
+import ie.macinnes.tvheadend.sync.SyncProgress;
 import ie.macinnes.tvheadend.sync.SyncUtils;
 
 public class AuthenticatorService extends Service {
@@ -58,8 +64,17 @@ public class AuthenticatorService extends Service {
                     // Remove the Periodic Sync (Is this necessary?)
                     SyncUtils.removePeriodicSync(currentAccount);
 
-                    // Remove all the channels we added
-                    TvContractUtils.removeChannels(getApplicationContext());
+                    // Remove all the channels we added for it
+                    TvContractUtils.removeChannels(getApplicationContext(), currentAccount);
+
+                    // Close its client, and forget everything its syncs stored
+                    TVHClient.removeInstance(currentAccount);
+
+                    Context context = getApplicationContext();
+                    new ValidatorStore(context, currentAccount).clear();
+                    new LogoIndex(context, currentAccount).clear();
+                    new EpgWatermarks(context, currentAccount).clear();
+                    new SyncProgress(context, currentAccount).clear();
                 }
             }
         }
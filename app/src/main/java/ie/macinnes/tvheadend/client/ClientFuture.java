@@ -0,0 +1,399 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.support.annotation.NonNull;
+
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous client call, which callbacks can be attached to and which can be
+ * composed with others, without tying up a thread waiting on it. CompletableFuture needs API 24.
+ *
+ * Volley delivers results on the main thread, callbacks doing any real work should be given
+ * an executor of their own.
+ */
+public class ClientFuture<T> implements Future<T>, Response.Listener<T>, Response.ErrorListener {
+    private static final ScheduledThreadPoolExecutor sDeadlineExecutor;
+
+    /**
+     * Runs callbacks on whichever thread completed the future.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    static {
+        sDeadlineExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "ClientFutureTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sDeadlineExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    private boolean mDone = false;
+    private boolean mCancelled = false;
+    private T mValue;
+    private Throwable mError;
+
+    private List<Runnable> mCallbacks = new ArrayList<>();
+    private Request<?> mRequest;
+    private Future<?> mUpstream;
+    private ScheduledFuture<?> mDeadline;
+
+    public interface Callback<T> {
+        void onSuccess(T value);
+
+        /**
+         * @param error The VolleyError the request failed with, a TimeoutException if the
+         *              deadline passed, a CancellationException if cancelled, or whatever a
+         *              transformation threw.
+         */
+        void onFailure(Throwable error);
+    }
+
+    public interface Function<T, R> {
+        R apply(T value) throws Exception;
+    }
+
+    public interface AsyncFunction<T, R> {
+        ClientFuture<R> apply(T value) throws Exception;
+    }
+
+    public static <T> ClientFuture<T> completed(T value) {
+        ClientFuture<T> future = new ClientFuture<>();
+        future.set(value);
+        return future;
+    }
+
+    /**
+     * Ties the future to the Volley request producing it, so the request is cancelled if the
+     * future is cancelled or fails.
+     */
+    void setRequest(Request<?> request) {
+        boolean cancelled;
+
+        synchronized (this) {
+            mRequest = request;
+            cancelled = mDone && mError != null;
+        }
+
+        if (cancelled) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Ties the future to the one it's waiting on, so that one is cancelled if this one is
+     * cancelled or fails.
+     */
+    void setUpstream(Future<?> upstream) {
+        boolean cancelled;
+
+        synchronized (this) {
+            mUpstream = upstream;
+            cancelled = mDone && mError != null;
+        }
+
+        if (cancelled) {
+            upstream.cancel(true);
+        }
+    }
+
+    /**
+     * Runs the command after the given delay, on the thread shared with deadlines, so it must not
+     * block.
+     */
+    static ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return sDeadlineExecutor.schedule(command, delay, unit);
+    }
+
+    public boolean set(T value) {
+        return complete(value, null, false);
+    }
+
+    public boolean setException(Throwable error) {
+        return complete(null, error, false);
+    }
+
+    @Override
+    public void onResponse(T response) {
+        set(response);
+    }
+
+    @Override
+    public void onErrorResponse(VolleyError error) {
+        setException(error);
+    }
+
+    private boolean complete(T value, Throwable error, boolean cancelled) {
+        List<Runnable> callbacks;
+        Request<?> request;
+        Future<?> upstream;
+
+        synchronized (this) {
+            if (mDone) {
+                return false;
+            }
+
+            mDone = true;
+            mCancelled = cancelled;
+            mValue = value;
+            mError = error;
+
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            request = mRequest;
+            upstream = mUpstream;
+
+            if (mDeadline != null) {
+                mDeadline.cancel(false);
+            }
+
+            notifyAll();
+        }
+
+        // A failed future gives up on its request too, e.g. once its deadline has passed
+        if (error != null) {
+            if (request != null) {
+                request.cancel();
+            }
+
+            if (upstream != null) {
+                upstream.cancel(true);
+            }
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new CancellationException("Request cancelled"), true);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (!mDone) {
+            wait();
+        }
+
+        return getValue();
+    }
+
+    @Override
+    public synchronized T get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long remainingNanos = unit.toNanos(timeout);
+        long deadlineNanos = System.nanoTime() + remainingNanos;
+
+        while (!mDone) {
+            if (remainingNanos <= 0) {
+                throw new TimeoutException();
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            remainingNanos = deadlineNanos - System.nanoTime();
+        }
+
+        return getValue();
+    }
+
+    private T getValue() throws ExecutionException {
+        if (mCancelled) {
+            throw (CancellationException) mError;
+        }
+
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+
+        return mValue;
+    }
+
+    /**
+     * Fails the future with a TimeoutException, and cancels its request, if it hasn't completed
+     * within the given time.
+     */
+    public ClientFuture<T> withDeadline(long timeout, TimeUnit unit) {
+        ScheduledFuture<?> deadline = sDeadlineExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                setException(new TimeoutException("Deadline exceeded"));
+            }
+        }, timeout, unit);
+
+        synchronized (this) {
+            if (mDone) {
+                deadline.cancel(false);
+            } else {
+                if (mDeadline != null) {
+                    mDeadline.cancel(false);
+                }
+
+                mDeadline = deadline;
+            }
+        }
+
+        return this;
+    }
+
+    public void addCallback(Callback<? super T> callback) {
+        addCallback(callback, DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Calls back once the future completes, straight away if it already has.
+     */
+    public void addCallback(final Callback<? super T> callback, final Executor executor) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        T value;
+                        Throwable error;
+
+                        synchronized (ClientFuture.this) {
+                            value = mValue;
+                            error = mError;
+                        }
+
+                        if (error != null) {
+                            callback.onFailure(error);
+                        } else {
+                            callback.onSuccess(value);
+                        }
+                    }
+                });
+            }
+        };
+
+        synchronized (this) {
+            if (!mDone) {
+                mCallbacks.add(runnable);
+                return;
+            }
+        }
+
+        runnable.run();
+    }
+
+    /**
+     * @return a future of this one's value passed through the function, run on the completing
+     *         thread. Cancelling the returned future cancels this one.
+     */
+    public <R> ClientFuture<R> transform(final Function<? super T, ? extends R> function) {
+        final ClientFuture<R> result = new ClientFuture<>();
+        result.mUpstream = this;
+
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                try {
+                    result.set(function.apply(value));
+                } catch (Exception e) {
+                    result.setException(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                result.setException(error);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * @return a future of the future the function returns for this one's value, e.g. a follow up
+     *         request. Cancelling the returned future cancels whichever is outstanding.
+     */
+    public <R> ClientFuture<R> then(final AsyncFunction<? super T, R> function) {
+        final ClientFuture<R> result = new ClientFuture<>();
+        result.mUpstream = this;
+
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                ClientFuture<R> next;
+
+                try {
+                    next = function.apply(value);
+                } catch (Exception e) {
+                    result.setException(e);
+                    return;
+                }
+
+                result.setUpstream(next);
+
+                next.addCallback(new Callback<R>() {
+                    @Override
+                    public void onSuccess(R value) {
+                        result.set(value);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        result.setException(error);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                result.setException(error);
+            }
+        });
+
+        return result;
+    }
+}
@@ -1,21 +1,61 @@
 package ie.macinnes.tvheadend.client;
 
 import android.util.Base64;
+import android.util.LruCache;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 public class ClientUtils {
     private static final String TAG = ClientUtils.class.getName();
 
+    private static final String HEADER_AUTHORIZATION = "Authorization";
+
+    // Keyed by "username:password", there's normally only one or two accounts in use
+    private static final LruCache<String, Map<String, String>> sAuthHeaderCache = new LruCache<>(8);
+    private static final LruCache<String, Map<String, String>> sCompressedHeaderCache = new LruCache<>(8);
+
     public static Map<String, String> createBasicAuthHeader(String username, String password) {
-        Map<String, String> headerMap = new HashMap<String, String>();
+        return new HashMap<>(getBasicAuthHeader(username, password));
+    }
 
+    /**
+     * Like {@link #createBasicAuthHeader(String, String)}, but returns a cached, unmodifiable, map
+     * rather than encoding the credentials on every request.
+     */
+    public static Map<String, String> getBasicAuthHeader(String username, String password) {
         String credentials = username + ":" + password;
 
-        String base64EncodedCredentials =
-                Base64.encodeToString(credentials.getBytes(), Base64.NO_WRAP);
-        headerMap.put("Authorization", "Basic " + base64EncodedCredentials);
+        Map<String, String> headerMap = sAuthHeaderCache.get(credentials);
+
+        if (headerMap == null) {
+            String base64EncodedCredentials =
+                    Base64.encodeToString(credentials.getBytes(), Base64.NO_WRAP);
+            headerMap = Collections.singletonMap(HEADER_AUTHORIZATION, "Basic " + base64EncodedCredentials);
+
+            sAuthHeaderCache.put(credentials, headerMap);
+        }
+
+        return headerMap;
+    }
+
+    /**
+     * Basic auth, plus the headers asking for a compressed response. Cached and unmodifiable,
+     * responses must be read with {@link ResponseDecoder}.
+     */
+    public static Map<String, String> getCompressedRequestHeaders(String username, String password) {
+        String credentials = username + ":" + password;
+
+        Map<String, String> headerMap = sCompressedHeaderCache.get(credentials);
+
+        if (headerMap == null) {
+            headerMap = new HashMap<>(getBasicAuthHeader(username, password));
+            headerMap.put(ResponseDecoder.HEADER_ACCEPT_ENCODING, ResponseDecoder.ACCEPT_ENCODING);
+            headerMap = Collections.unmodifiableMap(headerMap);
+
+            sCompressedHeaderCache.put(credentials, headerMap);
+        }
 
         return headerMap;
     }
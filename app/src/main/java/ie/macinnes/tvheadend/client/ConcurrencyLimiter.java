@@ -0,0 +1,176 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caps the number of requests in flight to a server, adapting the cap to what the server can
+ * handle (AIMD). The limit grows by one per round trip while requests come back about as quickly
+ * as usual, and is cut back whenever latency climbs well above the norm, or the server errors.
+ *
+ * What's usual is tracked separately for each class of request, so requests which are always
+ * slow, e.g. large EPG pages, aren't mistaken for the server struggling, and don't hide it when
+ * quick requests slow down.
+ */
+public class ConcurrencyLimiter {
+    private static final int MIN_LIMIT = 1;
+
+    // A response this many times slower than the average means the server is queueing
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    // Below this, latency is too noisy to read anything into
+    private static final long MIN_LATENCY_THRESHOLD_MS = 50;
+
+    private static final double BACKOFF_RATIO = 0.75;
+
+    // Weight of each new sample in the long term average latency
+    private static final double AVERAGE_WEIGHT = 0.05;
+
+    private static final int LATENCY_SAMPLES = 256;
+
+    private final int mMaxLimit;
+
+    private double mLimit;
+    private int mInFlight = 0;
+    private final Map<String, Baseline> mBaselines = new HashMap<>();
+    private long mLastBackoffMillis = 0;
+
+    private final long[] mLatencySamples = new long[LATENCY_SAMPLES];
+    private int mSampleCount = 0;
+
+    private long mRequests = 0;
+    private long mBackoffs = 0;
+
+    private static class Baseline {
+        private double mAverageLatencyMillis = -1;
+    }
+
+    public ConcurrencyLimiter(int initialLimit, int maxLimit) {
+        mMaxLimit = maxLimit;
+        mLimit = Math.min(Math.max(initialLimit, MIN_LIMIT), maxLimit);
+    }
+
+    /**
+     * Blocks until there's room for another request.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (mInFlight >= getLimit()) {
+            wait();
+        }
+
+        mInFlight++;
+        mRequests++;
+    }
+
+    /**
+     * Gives back a slot taken by {@link #acquire()}, adjusting the limit based on how the request
+     * went.
+     *
+     * @param latencyClass Identifies requests whose latency is comparable to each other's
+     * @param latencyMillis How long the server took to respond, ignored if the request failed
+     * @param failed Whether the request failed in a way suggesting the server is overloaded,
+     *               e.g. it timed out, or the server returned a 5xx
+     */
+    public synchronized void release(String latencyClass, long latencyMillis, boolean failed) {
+        // How many were in flight alongside this request, determines whether it says anything
+        // about the current limit
+        int inFlight = mInFlight;
+        mInFlight--;
+
+        Baseline baseline = mBaselines.get(latencyClass);
+
+        if (baseline == null) {
+            baseline = new Baseline();
+            mBaselines.put(latencyClass, baseline);
+        }
+
+        if (failed) {
+            backoff(baseline, SystemClock.elapsedRealtime());
+        } else {
+            mLatencySamples[mSampleCount % LATENCY_SAMPLES] = latencyMillis;
+            mSampleCount++;
+
+            if (baseline.mAverageLatencyMillis < 0) {
+                baseline.mAverageLatencyMillis = latencyMillis;
+            }
+
+            double thresholdMillis = Math.max(
+                    baseline.mAverageLatencyMillis * LATENCY_TOLERANCE, MIN_LATENCY_THRESHOLD_MS);
+
+            if (latencyMillis > thresholdMillis) {
+                backoff(baseline, SystemClock.elapsedRealtime());
+            } else if (inFlight >= getLimit() / 2) {
+                // Only grow while we're actually making use of the limit
+                mLimit = Math.min(mLimit + 1.0 / mLimit, mMaxLimit);
+            }
+
+            baseline.mAverageLatencyMillis += (latencyMillis - baseline.mAverageLatencyMillis) * AVERAGE_WEIGHT;
+        }
+
+        notifyAll();
+    }
+
+    private void backoff(Baseline baseline, long nowMillis) {
+        // Every request in flight when the server started struggling will report back slow, only
+        // back off once for the lot of them
+        if (nowMillis - mLastBackoffMillis < Math.max(baseline.mAverageLatencyMillis, MIN_LATENCY_THRESHOLD_MS)) {
+            return;
+        }
+
+        mLastBackoffMillis = nowMillis;
+        mBackoffs++;
+        mLimit = Math.max(mLimit * BACKOFF_RATIO, MIN_LIMIT);
+    }
+
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return the given percentile of recent latencies, or 0 if there are none yet.
+     */
+    public synchronized long getLatencyPercentile(double percentile) {
+        int count = Math.min(mSampleCount, LATENCY_SAMPLES);
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long[] samples = Arrays.copyOf(mLatencySamples, count);
+        Arrays.sort(samples);
+
+        int index = (int) Math.ceil(percentile / 100 * count) - 1;
+
+        return samples[Math.min(Math.max(index, 0), count - 1)];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "<ConcurrencyLimiter limit=" + getLimit() + ", maxLimit=" + mMaxLimit
+                + ", inFlight=" + mInFlight + ", requests=" + mRequests + ", backoffs=" + mBackoffs
+                + ", p50Ms=" + getLatencyPercentile(50) + ", p90Ms=" + getLatencyPercentile(90)
+                + ", p99Ms=" + getLatencyPercentile(99) + ">";
+    }
+}
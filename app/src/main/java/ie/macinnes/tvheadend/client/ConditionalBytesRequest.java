@@ -0,0 +1,45 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A conditional request for the response body as is, e.g. an image to be stored without being
+ * decoded.
+ */
+public class ConditionalBytesRequest extends ConditionalRequest<byte[]> {
+    public ConditionalBytesRequest(String url, ValidatorStore.Validators validators, Response.Listener<Result<byte[]>> listener, Response.ErrorListener errorListener, String username, String password) {
+        super(url, validators, listener, errorListener, username, password);
+    }
+
+    @Override
+    protected Map<String, String> getBaseHeaders() {
+        return ClientUtils.getBasicAuthHeader(mUsername, mPassword);
+    }
+
+    @Override
+    protected byte[] parseValue(NetworkResponse response) throws IOException {
+        if (response.data == null || response.data.length == 0) {
+            throw new IOException("Empty response");
+        }
+
+        return response.data;
+    }
+}
@@ -0,0 +1,49 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Map;
+
+public class ConditionalGsonRequest<T> extends ConditionalRequest<T> {
+    private final Gson gson = new Gson();
+    private final Class<T> mClazz;
+
+    public ConditionalGsonRequest(String url, Class<T> clazz, ValidatorStore.Validators validators, Response.Listener<Result<T>> listener, Response.ErrorListener errorListener, String username, String password) {
+        super(url, validators, listener, errorListener, username, password);
+        mClazz = clazz;
+    }
+
+    @Override
+    protected Map<String, String> getBaseHeaders() {
+        return ClientUtils.getCompressedRequestHeaders(mUsername, mPassword);
+    }
+
+    @Override
+    protected T parseValue(NetworkResponse response) throws IOException {
+        try (Reader reader = new InputStreamReader(
+                ResponseDecoder.open(response),
+                HttpHeaderParser.parseCharset(response.headers))) {
+            return gson.fromJson(reader, mClazz);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A GET request made conditional on the given validators. If the server says nothing has changed
+ * the result is marked as not modified, and carries no value.
+ *
+ * Volley's own cache is bypassed, as it would otherwise add, and answer, its own validators.
+ */
+public abstract class ConditionalRequest<T> extends Request<ConditionalRequest.Result<T>> {
+    private final Response.Listener<Result<T>> mListener;
+    private final ValidatorStore.Validators mValidators;
+
+    protected final String mUsername;
+    protected final String mPassword;
+
+    public static class Result<T> {
+        /**
+         * The parsed response, or null if not modified.
+         */
+        public final T value;
+        public final boolean notModified;
+
+        /**
+         * The validators to send next time, or null if the server gave none.
+         */
+        public final ValidatorStore.Validators validators;
+
+        public Result(T value, boolean notModified, ValidatorStore.Validators validators) {
+            this.value = value;
+            this.notModified = notModified;
+            this.validators = validators;
+        }
+    }
+
+    /**
+     * @param validators The validators from the last response applied, or null to fetch
+     *                   unconditionally.
+     */
+    public ConditionalRequest(String url, ValidatorStore.Validators validators, Response.Listener<Result<T>> listener, Response.ErrorListener errorListener, String username, String password) {
+        super(Method.GET, url, errorListener);
+        mListener = listener;
+        mValidators = validators;
+        mUsername = username;
+        mPassword = password;
+
+        setShouldCache(false);
+    }
+
+    /**
+     * @return the headers to send, before any conditional headers are added.
+     */
+    protected abstract Map<String, String> getBaseHeaders();
+
+    /**
+     * Parses a full, 200, response.
+     */
+    protected abstract T parseValue(NetworkResponse response) throws IOException;
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        if (mValidators == null) {
+            return getBaseHeaders();
+        }
+
+        Map<String, String> headers = new HashMap<>(getBaseHeaders());
+        mValidators.addTo(headers);
+
+        return headers;
+    }
+
+    @Override
+    protected void deliverResponse(Result<T> response) {
+        mListener.onResponse(response);
+    }
+
+    @Override
+    protected Response<Result<T>> parseNetworkResponse(NetworkResponse response) {
+        if (response.statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            ValidatorStore.Validators validators = ValidatorStore.Validators.fromHeaders(response.headers);
+
+            return Response.success(
+                    new Result<T>(null, true, validators != null ? validators : mValidators), null);
+        }
+
+        try {
+            return Response.success(
+                    new Result<>(parseValue(response), false, ValidatorStore.Validators.fromHeaders(response.headers)),
+                    null);
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
+}
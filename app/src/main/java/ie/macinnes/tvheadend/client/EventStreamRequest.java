@@ -0,0 +1,116 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+/**
+ * Streams the entries of an /api/epg/events/grid response to a {@link Consumer} one event at a
+ * time, rather than materialising the full response as a String and EventList.
+ */
+public class EventStreamRequest extends Request<EventStreamRequest.Result> {
+    private final Gson gson = new Gson();
+    private final Consumer mConsumer;
+    private final Response.Listener<Result> mListener;
+
+    private String mUsername;
+    private String mPassword;
+
+    /**
+     * Receives each event as it is parsed. Called on a Volley network thread, before the
+     * request's listener is called. If the request fails part way through, the consumer will
+     * already have seen some events, and should discard them.
+     */
+    public interface Consumer {
+        void onEvent(TVHClient.Event event);
+    }
+
+    public static class Result {
+        public int count;
+        public int totalCount;
+    }
+
+    public EventStreamRequest(String url, Consumer consumer, Response.Listener<Result> listener, Response.ErrorListener errorListener, String username, String password) {
+        super(Method.GET, url, errorListener);
+        mConsumer = consumer;
+        mListener = listener;
+        mUsername = username;
+        mPassword = password;
+
+        // The response has already been handed off to the consumer, there's nothing to cache
+        setShouldCache(false);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() throws AuthFailureError {
+        return ClientUtils.getCompressedRequestHeaders(mUsername, mPassword);
+    }
+
+    @Override
+    protected void deliverResponse(Result response) {
+        mListener.onResponse(response);
+    }
+
+    @Override
+    protected Response<Result> parseNetworkResponse(NetworkResponse response) {
+        Result result = new Result();
+
+        // Decompressed as it's parsed, the decoded response is never held in memory
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                ResponseDecoder.open(response),
+                HttpHeaderParser.parseCharset(response.headers)))) {
+
+            reader.beginObject();
+
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+
+                if (name.equals("entries")) {
+                    reader.beginArray();
+
+                    while (reader.hasNext()) {
+                        TVHClient.Event event = gson.fromJson(reader, TVHClient.Event.class);
+                        mConsumer.onEvent(event);
+                        result.count++;
+                    }
+
+                    reader.endArray();
+                } else if (name.equals("totalCount")) {
+                    result.totalCount = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+
+            reader.endObject();
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            return Response.error(new ParseError(e));
+        }
+
+        return Response.success(result, HttpHeaderParser.parseCacheHeaders(response));
+    }
+}
@@ -22,9 +22,11 @@ import com.android.volley.Request;
 import com.android.volley.Response;
 import com.android.volley.toolbox.HttpHeaderParser;
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Map;
 
 
@@ -52,7 +54,7 @@ public class GsonRequest<T> extends Request<T> {
 
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
-        return ClientUtils.createBasicAuthHeader(mUsername, mPassword);
+        return ClientUtils.getCompressedRequestHeaders(mUsername, mPassword);
     }
 
     @Override
@@ -66,16 +68,15 @@ public class GsonRequest<T> extends Request<T> {
 
     @Override
     protected Response<T> parseNetworkResponse(NetworkResponse response) {
-        try {
-            String json = new String(
-                    response.data,
-                    HttpHeaderParser.parseCharset(response.headers));
+        try (Reader reader = new InputStreamReader(
+                ResponseDecoder.open(response),
+                HttpHeaderParser.parseCharset(response.headers))) {
             return Response.success(
-                    gson.fromJson(json, mClazz),
+                    gson.fromJson(reader, mClazz),
                     HttpHeaderParser.parseCacheHeaders(response));
-        } catch (UnsupportedEncodingException e) {
+        } catch (IOException e) {
             return Response.error(new ParseError(e));
-        } catch (JsonSyntaxException e) {
+        } catch (JsonParseException e) {
             return Response.error(new ParseError(e));
         }
     }
@@ -0,0 +1,403 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Request;
+import com.android.volley.toolbox.HttpStack;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * The HttpStack used by TVHClient. Keeps connections to the server alive between requests in a
+ * pool of its own, adaptively limits the number of concurrent connections to each host, and
+ * times each phase of every request.
+ */
+public class HttpTransport implements HttpStack {
+    private static final String TAG = HttpTransport.class.getName();
+
+    // Small servers struggle with more than a few concurrent requests, each host's limit starts
+    // here and adapts to what the host can actually handle
+    public static final int DEFAULT_INITIAL_CONNECTIONS_PER_HOST = 4;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+
+    private static final long KEEP_ALIVE_DURATION_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    private static final String EPG_PATH = "/api/epg/";
+    private static final String LATENCY_CLASS_EPG = "epg";
+    private static final String LATENCY_CLASS_DEFAULT = "default";
+
+    private final int mInitialConnectionsPerHost;
+    private final int mMaxConnectionsPerHost;
+    private final Map<String, ConcurrencyLimiter> mHostLimiters = new HashMap<>();
+
+    private final OkHttpClient mClient;
+
+    private final Object mMetricsLock = new Object();
+    private long mRequests = 0;
+    private long mTotalConnectMillis = 0;
+    private long mTotalTtfbMillis = 0;
+    private long mTotalBodyMillis = 0;
+    private long mTotalBodyBytes = 0;
+
+    public static class Timing {
+        public String url;
+        public int statusCode;
+        public long connectMillis;
+        public long ttfbMillis;
+        public long bodyMillis;
+        public long bodyBytes;
+        public String latencyClass;
+
+        private long mStartMillis;
+
+        @Override
+        public String toString() {
+            return "<Timing url=" + url + ", status=" + statusCode + ", connectMs=" + connectMillis + ", ttfbMs=" + ttfbMillis
+                    + ", bodyMs=" + bodyMillis + ", bodyBytes=" + bodyBytes + ">";
+        }
+    }
+
+    public HttpTransport() {
+        this(DEFAULT_INITIAL_CONNECTIONS_PER_HOST, DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    public HttpTransport(int initialConnectionsPerHost, int maxConnectionsPerHost) {
+        mInitialConnectionsPerHost = initialConnectionsPerHost;
+        mMaxConnectionsPerHost = maxConnectionsPerHost;
+
+        // No more connections are ever open to a host than its limiter allows, so the pool keeps
+        // them all alive between requests
+        mClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxConnectionsPerHost, KEEP_ALIVE_DURATION_MS, TimeUnit.MILLISECONDS))
+                .addNetworkInterceptor(new ConnectTimingInterceptor())
+                .build();
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    /**
+     * @return a copy of the per host limiters, keyed by "host:port".
+     */
+    public synchronized Map<String, ConcurrencyLimiter> getHostLimiters() {
+        return new HashMap<>(mHostLimiters);
+    }
+
+    @Override
+    public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders) throws IOException, AuthFailureError {
+        URL url = new URL(request.getUrl());
+
+        final ConcurrencyLimiter hostLimiter = getHostLimiter(url);
+
+        try {
+            hostLimiter.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + url.getHost());
+        }
+
+        final Timing timing = new Timing();
+        timing.url = request.getUrl();
+        timing.latencyClass = getLatencyClass(url);
+
+        boolean released = false;
+
+        try {
+            okhttp3.Request.Builder builder = new okhttp3.Request.Builder()
+                    .url(url)
+                    .tag(timing);
+
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                builder.addHeader(header.getKey(), header.getValue());
+            }
+
+            for (Map.Entry<String, String> header : additionalHeaders.entrySet()) {
+                builder.addHeader(header.getKey(), header.getValue());
+            }
+
+            setConnectionParametersForRequest(builder, request);
+
+            // Connecting includes name resolution on a fresh connection, near enough free when a
+            // pooled connection is reused, and is split off by the ConnectTimingInterceptor
+            timing.mStartMillis = SystemClock.elapsedRealtime();
+            Response okResponse = getClient(request).newCall(builder.build()).execute();
+            timing.ttfbMillis = SystemClock.elapsedRealtime() - timing.mStartMillis - timing.connectMillis;
+            timing.statusCode = okResponse.code();
+
+            ProtocolVersion protocolVersion = new ProtocolVersion("HTTP", 1, 1);
+            StatusLine responseStatus = new BasicStatusLine(protocolVersion,
+                    okResponse.code(), okResponse.message());
+            BasicHttpResponse response = new BasicHttpResponse(responseStatus);
+
+            Headers headers = okResponse.headers();
+
+            for (int i = 0; i < headers.size(); i++) {
+                response.addHeader(new BasicHeader(headers.name(i), headers.value(i)));
+            }
+
+            if (hasResponseBody(request.getMethod(), okResponse.code())) {
+                // The connection is held until the body has been read, or closed
+                released = true;
+                response.setEntity(entityFromResponse(okResponse, hostLimiter, timing));
+            } else {
+                // Closing the empty body hands the connection back to the pool
+                okResponse.body().close();
+
+                released = true;
+                hostLimiter.release(timing.latencyClass, timing.ttfbMillis, isServerError(okResponse.code()));
+                onComplete(timing);
+            }
+
+            return response;
+        } finally {
+            if (!released) {
+                // Failed to connect, or timed out waiting for the response
+                hostLimiter.release(timing.latencyClass, 0, true);
+            }
+        }
+    }
+
+    /**
+     * @return the limiter for the URL's host, created if no requests have been made to it yet.
+     */
+    public synchronized ConcurrencyLimiter getHostLimiter(URL url) {
+        String key = url.getHost() + ":" + url.getPort();
+        ConcurrencyLimiter limiter = mHostLimiters.get(key);
+
+        if (limiter == null) {
+            limiter = new ConcurrencyLimiter(mInitialConnectionsPerHost, mMaxConnectionsPerHost);
+            mHostLimiters.put(key, limiter);
+        }
+
+        return limiter;
+    }
+
+    /**
+     * EPG requests make the server gather up to thousands of events before it can respond, so
+     * are always much slower than anything else.
+     */
+    private static String getLatencyClass(URL url) {
+        return url.getPath().contains(EPG_PATH) ? LATENCY_CLASS_EPG : LATENCY_CLASS_DEFAULT;
+    }
+
+    private static boolean isServerError(int responseCode) {
+        return responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+
+    /**
+     * @return a client with the request's timeouts, sharing the transport's connection pool.
+     */
+    private OkHttpClient getClient(Request<?> request) {
+        int timeoutMs = request.getTimeoutMs();
+
+        if (timeoutMs == mClient.connectTimeoutMillis() && timeoutMs == mClient.readTimeoutMillis()) {
+            return mClient;
+        }
+
+        return mClient.newBuilder()
+                .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void setConnectionParametersForRequest(okhttp3.Request.Builder builder, Request<?> request) throws AuthFailureError {
+        switch (request.getMethod()) {
+            case Request.Method.DEPRECATED_GET_OR_POST:
+            case Request.Method.GET:
+                builder.get();
+                break;
+            case Request.Method.POST:
+                builder.post(createRequestBody(request));
+                break;
+            case Request.Method.PUT:
+                builder.put(createRequestBody(request));
+                break;
+            case Request.Method.DELETE:
+                builder.delete();
+                break;
+            case Request.Method.HEAD:
+                builder.head();
+                break;
+            default:
+                throw new IllegalStateException("Unsupported request method: " + request.getMethod());
+        }
+    }
+
+    private static RequestBody createRequestBody(Request<?> request) throws AuthFailureError {
+        byte[] body = request.getBody();
+
+        if (body == null) {
+            body = new byte[0];
+        }
+
+        return RequestBody.create(MediaType.parse(request.getBodyContentType()), body);
+    }
+
+    private static boolean hasResponseBody(int requestMethod, int responseCode) {
+        return requestMethod != Request.Method.HEAD
+                && !(100 <= responseCode && responseCode < 200)
+                && responseCode != HttpURLConnection.HTTP_NO_CONTENT
+                && responseCode != HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    private BasicHttpEntity entityFromResponse(Response okResponse, ConcurrencyLimiter hostLimiter, Timing timing) {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        ResponseBody body = okResponse.body();
+
+        entity.setContent(new TimedInputStream(body.byteStream(), hostLimiter, timing));
+        entity.setContentLength(body.contentLength());
+        entity.setContentEncoding(okResponse.header(HEADER_CONTENT_ENCODING));
+        entity.setContentType(okResponse.header(HEADER_CONTENT_TYPE));
+
+        return entity;
+    }
+
+    private void onComplete(Timing timing) {
+        synchronized (mMetricsLock) {
+            mRequests++;
+            mTotalConnectMillis += timing.connectMillis;
+            mTotalTtfbMillis += timing.ttfbMillis;
+            mTotalBodyMillis += timing.bodyMillis;
+            mTotalBodyBytes += timing.bodyBytes;
+        }
+    }
+
+    public void logMetrics() {
+        synchronized (mMetricsLock) {
+            Log.d(TAG, "Transport: requests=" + mRequests
+                    + ", maxConnectionsPerHost=" + mMaxConnectionsPerHost
+                    + ", avgConnectMs=" + (mRequests == 0 ? 0 : mTotalConnectMillis / mRequests)
+                    + ", avgTtfbMs=" + (mRequests == 0 ? 0 : mTotalTtfbMillis / mRequests)
+                    + ", avgBodyMs=" + (mRequests == 0 ? 0 : mTotalBodyMillis / mRequests)
+                    + ", bodyBytes=" + mTotalBodyBytes);
+        }
+
+        for (Map.Entry<String, ConcurrencyLimiter> entry : getHostLimiters().entrySet()) {
+            Log.d(TAG, "Host " + entry.getKey() + ": " + entry.getValue().toString());
+        }
+    }
+
+    /**
+     * Times the body as it's read, and gives the host slot back once it's finished with. The
+     * limiter is fed the time to first byte, the body's size says nothing about the server's load.
+     */
+    private class TimedInputStream extends FilterInputStream {
+        private final ConcurrencyLimiter mHostLimiter;
+        private final Timing mTiming;
+        private final long mStartMillis = SystemClock.elapsedRealtime();
+        private final AtomicBoolean mFinished = new AtomicBoolean(false);
+
+        public TimedInputStream(InputStream in, ConcurrencyLimiter hostLimiter, Timing timing) {
+            super(in);
+            mHostLimiter = hostLimiter;
+            mTiming = timing;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+
+            if (b == -1) {
+                finish();
+            } else {
+                mTiming.bodyBytes++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+
+            if (read == -1) {
+                finish();
+            } else {
+                mTiming.bodyBytes += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            if (mFinished.compareAndSet(false, true)) {
+                mTiming.bodyMillis = SystemClock.elapsedRealtime() - mStartMillis;
+                mHostLimiter.release(mTiming.latencyClass, mTiming.ttfbMillis, isServerError(mTiming.statusCode));
+                onComplete(mTiming);
+            }
+        }
+    }
+
+    /**
+     * Network interceptors only run once a connection to the server is ready, so the time taken
+     * to get here is the time spent connecting.
+     */
+    private static class ConnectTimingInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Object tag = chain.request().tag();
+
+            if (tag instanceof Timing) {
+                Timing timing = (Timing) tag;
+                timing.connectMillis = SystemClock.elapsedRealtime() - timing.mStartMillis;
+            }
+
+            return chain.proceed(chain.request());
+        }
+    }
+}
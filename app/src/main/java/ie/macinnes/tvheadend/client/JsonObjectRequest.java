@@ -15,10 +15,17 @@ under the License.
 package ie.macinnes.tvheadend.client;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
 import com.android.volley.Response;
+import com.android.volley.toolbox.HttpHeaderParser;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.Map;
 
 public class JsonObjectRequest extends com.android.volley.toolbox.JsonObjectRequest {
@@ -49,10 +56,32 @@ public class JsonObjectRequest extends com.android.volley.toolbox.JsonObjectRequ
 
     @Override
     public Map<String, String> getHeaders() throws AuthFailureError {
-        return ClientUtils.createBasicAuthHeader(mUsername, mPassword);
+        return ClientUtils.getCompressedRequestHeaders(mUsername, mPassword);
     }
 
     public Map<String, String> getParams() {
         return mParams;
     }
+
+    @Override
+    protected Response<JSONObject> parseNetworkResponse(NetworkResponse response) {
+        try (Reader reader = new InputStreamReader(
+                ResponseDecoder.open(response),
+                HttpHeaderParser.parseCharset(response.headers, PROTOCOL_CHARSET))) {
+            StringBuilder json = new StringBuilder();
+            char[] buffer = new char[4096];
+            int read;
+
+            while ((read = reader.read(buffer)) != -1) {
+                json.append(buffer, 0, read);
+            }
+
+            return Response.success(new JSONObject(json.toString()),
+                    HttpHeaderParser.parseCacheHeaders(response));
+        } catch (IOException e) {
+            return Response.error(new ParseError(e));
+        } catch (JSONException e) {
+            return Response.error(new ParseError(e));
+        }
+    }
 }
@@ -0,0 +1,261 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.VolleyError;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares a single in-flight request, and its parsed result, between concurrent callers asking
+ * for the same thing. Results may also be kept for a short while, and handed to later callers.
+ *
+ * Callers share the same result object, and must not modify it.
+ */
+public class RequestCoalescer {
+    private static final String TAG = RequestCoalescer.class.getName();
+
+    private static final int MAX_CACHE_ENTRIES = 32;
+
+    private final Object mLock = new Object();
+    // Keyed by the queue the request went on, so a stopped queue's requests can be failed
+    // rather than left for later callers to join
+    private final Map<RequestQueue, Map<String, InFlight<?>>> mInFlight = new HashMap<>();
+    private final Map<String, CacheEntry> mCache = new HashMap<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private long mRequests = 0;
+    private long mCoalesced = 0;
+    private long mCacheHits = 0;
+
+    public interface RequestFactory<T> {
+        Request<T> create(Response.Listener<T> listener, Response.ErrorListener errorListener);
+    }
+
+    private static class InFlight<T> {
+        private final List<Response.Listener<T>> mListeners = new ArrayList<>();
+        private final List<Response.ErrorListener> mErrorListeners = new ArrayList<>();
+
+        public void add(Response.Listener<T> listener, Response.ErrorListener errorListener) {
+            mListeners.add(listener);
+            mErrorListeners.add(errorListener);
+        }
+    }
+
+    private static class CacheEntry {
+        private final Object mResult;
+        private final long mExpiresMillis;
+
+        public CacheEntry(Object result, long expiresMillis) {
+            mResult = result;
+            mExpiresMillis = expiresMillis;
+        }
+
+        public boolean isExpired(long nowMillis) {
+            return nowMillis >= mExpiresMillis;
+        }
+    }
+
+    /**
+     * Delivers the result for the given key to the listener. Depending on the key's state, the
+     * result comes from the cache, from a request already in flight, or from a new request
+     * created by the factory and added to the queue.
+     *
+     * @param key Must identify everything the response depends on, e.g. the URL and credentials
+     * @param ttlMillis How long a successful result is kept for, or 0 to not keep it at all
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void add(RequestQueue queue, final String key, final long ttlMillis, final Response.Listener<T> listener, Response.ErrorListener errorListener, RequestFactory<T> factory) {
+        InFlight<T> inFlight;
+
+        synchronized (mLock) {
+            CacheEntry entry = mCache.get(key);
+
+            if (entry != null && !entry.isExpired(SystemClock.elapsedRealtime())) {
+                mCacheHits++;
+
+                final T result = (T) entry.mResult;
+
+                // Delivered on the main thread, just as Volley would have
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResponse(result);
+                    }
+                });
+
+                return;
+            }
+
+            Map<String, InFlight<?>> queueInFlight = mInFlight.get(queue);
+
+            if (queueInFlight == null) {
+                queueInFlight = new HashMap<>();
+                mInFlight.put(queue, queueInFlight);
+            }
+
+            inFlight = (InFlight<T>) queueInFlight.get(key);
+
+            if (inFlight != null) {
+                Log.d(TAG, "Joining in-flight request: " + key);
+                mCoalesced++;
+                inFlight.add(listener, errorListener);
+                return;
+            }
+
+            inFlight = new InFlight<>();
+            inFlight.add(listener, errorListener);
+            queueInFlight.put(key, inFlight);
+            mRequests++;
+        }
+
+        final RequestQueue requestQueue = queue;
+        final InFlight<T> requestInFlight = inFlight;
+
+        Request<T> request = factory.create(
+                new Response.Listener<T>() {
+                    @Override
+                    public void onResponse(T response) {
+                        onRequestComplete(requestQueue, key, requestInFlight, ttlMillis, response);
+                    }
+                },
+                new Response.ErrorListener() {
+                    @Override
+                    public void onErrorResponse(VolleyError error) {
+                        onRequestFailed(requestQueue, key, requestInFlight, error);
+                    }
+                });
+
+        queue.add(request);
+    }
+
+    private <T> void onRequestComplete(RequestQueue queue, String key, InFlight<T> inFlight, long ttlMillis, T response) {
+        synchronized (mLock) {
+            if (!removeInFlight(queue, key, inFlight)) {
+                // Already failed, when the queue was stopped
+                return;
+            }
+
+            if (ttlMillis > 0) {
+                long nowMillis = SystemClock.elapsedRealtime();
+
+                pruneCache(nowMillis);
+                mCache.put(key, new CacheEntry(response, nowMillis + ttlMillis));
+            }
+        }
+
+        for (Response.Listener<T> listener : inFlight.mListeners) {
+            listener.onResponse(response);
+        }
+    }
+
+    private void onRequestFailed(RequestQueue queue, String key, InFlight<?> inFlight, VolleyError error) {
+        synchronized (mLock) {
+            if (!removeInFlight(queue, key, inFlight)) {
+                return;
+            }
+        }
+
+        for (Response.ErrorListener errorListener : inFlight.mErrorListeners) {
+            errorListener.onErrorResponse(error);
+        }
+    }
+
+    private boolean removeInFlight(RequestQueue queue, String key, InFlight<?> inFlight) {
+        Map<String, InFlight<?>> queueInFlight = mInFlight.get(queue);
+
+        if (queueInFlight == null || queueInFlight.get(key) != inFlight) {
+            return false;
+        }
+
+        queueInFlight.remove(key);
+
+        if (queueInFlight.isEmpty()) {
+            mInFlight.remove(queue);
+        }
+
+        return true;
+    }
+
+    /**
+     * Fails every request in flight on the given queue. Must be called when the queue is
+     * stopped, as Volley drops the queue's requests without calling back.
+     */
+    public void failAll(RequestQueue queue) {
+        Map<String, InFlight<?>> queueInFlight;
+
+        synchronized (mLock) {
+            queueInFlight = mInFlight.remove(queue);
+        }
+
+        if (queueInFlight == null) {
+            return;
+        }
+
+        VolleyError error = new VolleyError("Request queue stopped");
+
+        for (Map.Entry<String, InFlight<?>> entry : queueInFlight.entrySet()) {
+            Log.d(TAG, "Failing in-flight request: " + entry.getKey());
+
+            for (Response.ErrorListener errorListener : entry.getValue().mErrorListeners) {
+                errorListener.onErrorResponse(error);
+            }
+        }
+    }
+
+    private void pruneCache(long nowMillis) {
+        Iterator<CacheEntry> iterator = mCache.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(nowMillis)) {
+                iterator.remove();
+            }
+        }
+
+        if (mCache.size() >= MAX_CACHE_ENTRIES) {
+            mCache.clear();
+        }
+    }
+
+    private int countInFlight() {
+        int count = 0;
+
+        for (Map<String, InFlight<?>> queueInFlight : mInFlight.values()) {
+            count += queueInFlight.size();
+        }
+
+        return count;
+    }
+
+    public void logMetrics() {
+        synchronized (mLock) {
+            Log.d(TAG, "Coalescer: requests=" + mRequests + ", coalesced=" + mCoalesced
+                    + ", cacheHits=" + mCacheHits + ", inFlight=" + countInFlight()
+                    + ", cached=" + mCache.size());
+        }
+    }
+}
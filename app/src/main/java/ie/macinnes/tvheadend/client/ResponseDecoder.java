@@ -0,0 +1,140 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.util.Log;
+
+import com.android.volley.NetworkResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decodes compressed response bodies as they're read, so they can be streamed straight into a
+ * parser, and keeps count of bytes received vs bytes decoded.
+ *
+ * Requests opting in must send {@link #ACCEPT_ENCODING} themselves, which also stops
+ * OkHttp from transparently decompressing the response behind our back.
+ */
+public class ResponseDecoder {
+    private static final String TAG = ResponseDecoder.class.getName();
+
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+
+    private static final Object sMetricsLock = new Object();
+    private static long sResponses = 0;
+    private static long sCompressedResponses = 0;
+    private static long sWireBytes = 0;
+    private static long sDecodedBytes = 0;
+
+    /**
+     * Opens the response body, decoding it according to its Content-Encoding. The counters are
+     * updated when the stream is closed.
+     */
+    public static InputStream open(NetworkResponse response) throws IOException {
+        InputStream inputStream = new ByteArrayInputStream(response.data);
+        String contentEncoding = response.headers == null
+                ? null : response.headers.get(HEADER_CONTENT_ENCODING);
+
+        boolean compressed = true;
+
+        if ("gzip".equalsIgnoreCase(contentEncoding)) {
+            inputStream = new GZIPInputStream(inputStream);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            // Meant to be zlib wrapped, but some servers send raw deflate data
+            boolean zlibWrapped = response.data.length >= 2
+                    && (response.data[0] & 0x0f) == 8
+                    && (((response.data[0] & 0xff) << 8) | (response.data[1] & 0xff)) % 31 == 0;
+            inputStream = new InflaterInputStream(inputStream, new Inflater(!zlibWrapped));
+        } else {
+            compressed = false;
+        }
+
+        return new CountingInputStream(inputStream, response.data.length, compressed);
+    }
+
+    public static void logMetrics() {
+        synchronized (sMetricsLock) {
+            Log.d(TAG, "Responses: count=" + sResponses + ", compressed=" + sCompressedResponses
+                    + ", wireBytes=" + sWireBytes + ", decodedBytes=" + sDecodedBytes
+                    + ", ratio=" + (sDecodedBytes == 0 ? 0 : (sWireBytes * 100 / sDecodedBytes)) + "%");
+        }
+    }
+
+    private static void record(long wireBytes, long decodedBytes, boolean compressed) {
+        synchronized (sMetricsLock) {
+            sResponses++;
+            sWireBytes += wireBytes;
+            sDecodedBytes += decodedBytes;
+
+            if (compressed) {
+                sCompressedResponses++;
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final long mWireBytes;
+        private final boolean mCompressed;
+        private long mDecodedBytes = 0;
+        private boolean mClosed = false;
+
+        public CountingInputStream(InputStream in, long wireBytes, boolean compressed) {
+            super(in);
+            mWireBytes = wireBytes;
+            mCompressed = compressed;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+
+            if (b != -1) {
+                mDecodedBytes++;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+
+            if (read != -1) {
+                mDecodedBytes += read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+
+            if (!mClosed) {
+                mClosed = true;
+                record(mWireBytes, mDecodedBytes, mCompressed);
+            }
+        }
+    }
+}
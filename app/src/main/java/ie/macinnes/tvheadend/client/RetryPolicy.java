@@ -0,0 +1,167 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.util.Log;
+
+import com.android.volley.NetworkError;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Retries failed requests with jittered exponential backoff, up to a number of attempts per
+ * request, and a budget of retries shared by everything using the policy, e.g. a single sync.
+ * Only failures which might go away by themselves are retried, timeouts, network errors and 5xx
+ * responses.
+ */
+public class RetryPolicy {
+    private static final String TAG = RetryPolicy.class.getName();
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY_MS = TimeUnit.SECONDS.toMillis(1);
+    public static final long DEFAULT_MAX_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final AtomicInteger mBudget;
+    private final Random mRandom = new Random();
+
+    private final AtomicInteger mRetries = new AtomicInteger();
+
+    public interface Attempt<T> {
+        /**
+         * Starts a fresh attempt at the request, called again for each retry.
+         */
+        ClientFuture<T> start();
+    }
+
+    public RetryPolicy(int budget) {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, budget);
+    }
+
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, int budget) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mBudget = new AtomicInteger(budget);
+    }
+
+    public static boolean isRetryable(Throwable error) {
+        if (error instanceof TimeoutException
+                || error instanceof TimeoutError
+                || error instanceof NetworkError) {
+            return true;
+        }
+
+        if (error instanceof ServerError) {
+            // Volley reports 4xx responses as ServerErrors too
+            ServerError serverError = (ServerError) error;
+            return serverError.networkResponse == null || serverError.networkResponse.statusCode >= 500;
+        }
+
+        return false;
+    }
+
+    /**
+     * Decides whether a failed attempt should be retried, taking a retry from the budget if so.
+     *
+     * @param attempt The number of the attempt that failed, starting from 0
+     */
+    public boolean shouldRetry(Throwable error, int attempt) {
+        if (attempt + 1 >= mMaxAttempts || !isRetryable(error)) {
+            return false;
+        }
+
+        if (mBudget.getAndDecrement() <= 0) {
+            Log.w(TAG, "Retry budget exhausted");
+            mBudget.incrementAndGet();
+            return false;
+        }
+
+        mRetries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return how long to wait before retrying, picked at random up to the exponential backoff
+     *         for the attempt ("full jitter"), so clients failing together don't retry together.
+     */
+    public long getDelayMillis(int attempt) {
+        long backoffMillis = Math.min(mBaseDelayMillis << Math.min(attempt, 30), mMaxDelayMillis);
+
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * backoffMillis);
+        }
+    }
+
+    /**
+     * Runs the attempt, retrying it as the policy allows. Cancelling the returned future cancels
+     * the current attempt, or any pending retry.
+     */
+    public <T> ClientFuture<T> execute(Attempt<T> attempt) {
+        ClientFuture<T> result = new ClientFuture<>();
+        start(attempt, result, 0);
+        return result;
+    }
+
+    private <T> void start(final Attempt<T> attempt, final ClientFuture<T> result, final int attemptNumber) {
+        if (result.isDone()) {
+            return;
+        }
+
+        ClientFuture<T> future = attempt.start();
+        result.setUpstream(future);
+
+        future.addCallback(new ClientFuture.Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                if (result.isDone() || !shouldRetry(error, attemptNumber)) {
+                    result.setException(error);
+                    return;
+                }
+
+                long delayMillis = getDelayMillis(attemptNumber);
+
+                Log.d(TAG, "Retrying in " + delayMillis + "ms after: " + error.toString());
+
+                result.setUpstream(ClientFuture.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        start(attempt, result, attemptNumber + 1);
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS));
+            }
+        });
+    }
+
+    public int getRetries() {
+        return mRetries.get();
+    }
+
+    public int getRemainingBudget() {
+        return Math.max(mBudget.get(), 0);
+    }
+}
@@ -17,19 +17,26 @@ package ie.macinnes.tvheadend.client;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.Context;
-import android.graphics.Bitmap;
+import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.Response;
-import com.android.volley.toolbox.RequestFuture;
-import com.android.volley.toolbox.Volley;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
 import com.google.gson.annotations.SerializedName;
 
 import org.json.JSONObject;
 
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -40,44 +47,92 @@ public class TVHClient {
     private static final String TAG = TVHClient.class.getName();
 
     private static final int DEFAULT_CHANNEL_LIMIT = 10000;
-    public static final int DEFAULT_EVENT_LIMIT = 1000;
     public static final int QUICK_EVENT_LIMIT = 10;
+    public static final int BULK_EVENT_PAGE_SIZE = 5000;
+    public static final int CHANNEL_EVENT_PAGE_SIZE = 250;
+
+    // Each client gets its own cache directory under this one
+    private static final String CACHE_DIR = "volley";
+
+    // How long server info, profile lists and channel grids are reused for, long enough to cover
+    // a sync, or the setup wizard and a sync racing each other
+    private static final long RESULT_TTL_MS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final Map<Account, TVHClient> sInstances = new HashMap<>();
+
+    // Shared by all clients, keys include the credentials
+    private static final RequestCoalescer sCoalescer = new RequestCoalescer();
 
-    private static TVHClient sInstance;
     private final Context mContext;
+    private final HttpTransport mTransport;
     private RequestQueue mRequestQueue;
 
-    private String mAccountHostname;
-    private String mAccountPort;
-    private String mAccountPath;
-    private String mAccountName;
-    private String mAccountPassword;
+    private final String mAccountHostname;
+    private final String mAccountPort;
+    private final String mAccountPath;
+    private final String mAccountName;
+    private final String mAccountPassword;
+
+    private final int mTimeout = 30;
 
-    private int mTimeout = 30;
+    /**
+     * Returns the shared client for the given account, replacing it if the account's connection
+     * info has changed since it was created.
+     */
+    public static TVHClient getInstance(Context context, Account account) {
+        TVHClient client = fromAccount(context, account);
 
-    public static synchronized TVHClient getInstance(Context context) {
-        if (sInstance == null) {
-            sInstance = new TVHClient(context);
+        synchronized (sInstances) {
+            TVHClient existing = sInstances.get(account);
+
+            if (existing != null && existing.hasSameConnectionInfo(client)) {
+                return existing;
+            }
+
+            if (existing != null) {
+                Log.d(TAG, "Connection info changed for account: " + account.name);
+                existing.close();
+            }
+
+            sInstances.put(account, client);
+            return client;
         }
-        return sInstance;
     }
 
-    public TVHClient(Context context) {
-        mContext = context;
+    /**
+     * Forgets, and closes, the shared client for the given account, if there is one.
+     */
+    public static void removeInstance(Account account) {
+        TVHClient existing;
+
+        synchronized (sInstances) {
+            existing = sInstances.remove(account);
+        }
+
+        if (existing != null) {
+            existing.close();
+        }
     }
 
-    public void setConnectionInfo(Account account) {
-        AccountManager accountManager = AccountManager.get(mContext);
+    private static TVHClient fromAccount(Context context, Account account) {
+        AccountManager accountManager = AccountManager.get(context);
 
         String password = accountManager.getPassword(account);
         String hostname = accountManager.getUserData(account, Constants.KEY_HOSTNAME);
         String port = accountManager.getUserData(account, Constants.KEY_HTTP_PORT);
         String path = accountManager.getUserData(account, Constants.KEY_HTTP_PATH);
 
-        setConnectionInfo(hostname, port, path, account.name, password);
+        return new TVHClient(context, hostname, port, path, account.name, password);
+    }
+
+    public TVHClient(Context context, String accountHostname, String accountPort, String accountPath, String accountName, String accountPassword) {
+        this(context, accountHostname, accountPort, accountPath, accountName, accountPassword, new HttpTransport());
     }
 
-    public void setConnectionInfo(String accountHostname, String accountPort, String accountPath, String accountName, String accountPassword) {
+    public TVHClient(Context context, String accountHostname, String accountPort, String accountPath, String accountName, String accountPassword, HttpTransport transport) {
+        mContext = context.getApplicationContext();
+        mTransport = transport;
+
         mAccountHostname = accountHostname;
         mAccountPort = accountPort;
         mAccountPath = accountPath;
@@ -85,13 +140,75 @@ public class TVHClient {
         mAccountPassword = accountPassword;
     }
 
-    private RequestQueue getRequestQueue() {
+    private boolean hasSameConnectionInfo(TVHClient other) {
+        return TextUtils.equals(mAccountHostname, other.mAccountHostname)
+                && TextUtils.equals(mAccountPort, other.mAccountPort)
+                && TextUtils.equals(mAccountPath, other.mAccountPath)
+                && TextUtils.equals(mAccountName, other.mAccountName)
+                && TextUtils.equals(mAccountPassword, other.mAccountPassword);
+    }
+
+    private synchronized RequestQueue getRequestQueue() {
         if (mRequestQueue == null) {
-            mRequestQueue = Volley.newRequestQueue(mContext.getApplicationContext());
+            String cacheName = mAccountName + "@" + getBaseHttpUri();
+            File cacheDir = new File(mContext.getCacheDir(),
+                    CACHE_DIR + "/" + Integer.toHexString(cacheName.hashCode()));
+
+            // One network thread per connection the transport allows, any more would just queue
+            // up waiting on the transport
+            mRequestQueue = new RequestQueue(
+                    new DiskBasedCache(cacheDir), new BasicNetwork(mTransport),
+                    mTransport.getMaxConnectionsPerHost());
+            mRequestQueue.start();
         }
         return mRequestQueue;
     }
 
+    /**
+     * Stops the client's request queue. Requests still queued are dropped, and failed if they
+     * went through the coalescer, and any later requests start a new queue.
+     */
+    public synchronized void close() {
+        if (mRequestQueue != null) {
+            mRequestQueue.stop();
+            sCoalescer.failAll(mRequestQueue);
+            mRequestQueue = null;
+        }
+    }
+
+    private String buildRequestKey(String url) {
+        return mAccountName + ":" + Integer.toHexString(String.valueOf(mAccountPassword).hashCode()) + "@" + url;
+    }
+
+    private String buildRequestKey(String url, ValidatorStore.Validators validators) {
+        if (validators == null) {
+            return buildRequestKey(url);
+        }
+
+        return buildRequestKey(url) + "#" + validators.etag + "|" + validators.lastModified;
+    }
+
+    public static RequestCoalescer getCoalescer() {
+        return sCoalescer;
+    }
+
+    public HttpTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * @return the transport's concurrency limiter for the server, or null if the server's URL
+     *         is invalid.
+     */
+    public ConcurrencyLimiter getServerLimiter() {
+        try {
+            return mTransport.getHostLimiter(new URL(getBaseHttpUri()));
+        } catch (MalformedURLException e) {
+            Log.w(TAG, "Invalid server URL: " + getBaseHttpUri());
+            return null;
+        }
+    }
+
     public String getBaseHttpUri() {
         if (mAccountPath == null) {
             return "http://" + mAccountHostname + ":" + mAccountPort;
@@ -100,115 +217,207 @@ public class TVHClient {
         }
     }
 
+    /**
+     * Waits for a future on behalf of the blocking API, giving up on its request if it takes
+     * longer than the client's timeout.
+     */
+    private <T> T await(ClientFuture<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return future.get(mTimeout, TimeUnit.SECONDS);
+        } catch (TimeoutException|InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    private <T> Request<T> addRequest(Request<T> request) {
+        return getRequestQueue().add(request);
+    }
+
     public void getServerInfo(Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
         Log.d(TAG, "Calling getServerInfo");
 
-        String url = getBaseHttpUri() + "/api/serverinfo";
-
-        JsonObjectRequest jsObjRequest = new JsonObjectRequest(
-                Request.Method.GET, url, null, listener, errorListener, mAccountName, mAccountPassword);
+        final String url = getBaseHttpUri() + "/api/serverinfo";
 
-        getRequestQueue().add(jsObjRequest);
+        sCoalescer.add(getRequestQueue(), buildRequestKey(url), RESULT_TTL_MS, listener, errorListener,
+                new RequestCoalescer.RequestFactory<JSONObject>() {
+                    @Override
+                    public Request<JSONObject> create(Response.Listener<JSONObject> listener, Response.ErrorListener errorListener) {
+                        return new JsonObjectRequest(
+                                Request.Method.GET, url, null, listener, errorListener, mAccountName, mAccountPassword);
+                    }
+                });
     }
 
-    public JSONObject getServerInfo() throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<JSONObject> future = RequestFuture.newFuture();
+    public ClientFuture<JSONObject> getServerInfoAsync() {
+        ClientFuture<JSONObject> future = new ClientFuture<>();
 
         getServerInfo(future, future);
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+        return future;
     }
 
-    public void getProfileList(Response.Listener<KeyValList> listener, Response.ErrorListener errorListener) {
-        Log.d(TAG, "Calling getProfileList");
-
-        String url = getBaseHttpUri() + "/api/profile/list";
-
-        GsonRequest<KeyValList> request = new GsonRequest<KeyValList>(
-                Request.Method.GET, url, KeyValList.class, listener, errorListener, mAccountName, mAccountPassword);
+    public JSONObject getServerInfo() throws InterruptedException, ExecutionException, TimeoutException {
+        return await(getServerInfoAsync());
+    }
 
-        getRequestQueue().add(request);
+    /**
+     * Fetches the channel grid, unless it's unchanged since the response the validators came
+     * from. Concurrent callers with the same validators share a request, the result isn't kept
+     * for later callers, whose validators may have moved on.
+     */
+    public void getChannelGrid(Response.Listener<ConditionalRequest.Result<ChannelList>> listener, Response.ErrorListener errorListener, final ValidatorStore.Validators validators) {
+        Log.d(TAG, "Calling conditional getChannelGrid");
+
+        final String url = getBaseHttpUri() + "/api/channel/grid?limit=" + Integer.toString(DEFAULT_CHANNEL_LIMIT);
+
+        sCoalescer.add(getRequestQueue(), buildRequestKey(url, validators), 0, listener, errorListener,
+                new RequestCoalescer.RequestFactory<ConditionalRequest.Result<ChannelList>>() {
+                    @Override
+                    public Request<ConditionalRequest.Result<ChannelList>> create(Response.Listener<ConditionalRequest.Result<ChannelList>> listener, Response.ErrorListener errorListener) {
+                        return new ConditionalGsonRequest<>(
+                                url, ChannelList.class, validators, listener, errorListener, mAccountName, mAccountPassword);
+                    }
+                });
     }
 
-    public KeyValList getProfileList() throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<KeyValList> future = RequestFuture.newFuture();
+    public ClientFuture<ConditionalRequest.Result<ChannelList>> getChannelGridAsync(ValidatorStore.Validators validators) {
+        ClientFuture<ConditionalRequest.Result<ChannelList>> future = new ClientFuture<>();
 
-        getProfileList(future, future);
+        getChannelGrid(future, future, validators);
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+        return future;
     }
 
-    public void getChannelGrid(Response.Listener<ChannelList> listener, Response.ErrorListener errorListener, int channelLimit) {
-        Log.d(TAG, "Calling getChannelGrid");
+    public ConditionalRequest.Result<ChannelList> getChannelGrid(ValidatorStore.Validators validators) throws InterruptedException, ExecutionException, TimeoutException {
+        return await(getChannelGridAsync(validators));
+    }
 
-        String url = getBaseHttpUri() + "/api/channel/grid?limit=" + Integer.toString(channelLimit);
+    /**
+     * Fetches a channel icon without decoding it, for storing as is.
+     */
+    public Request<?> getChannelIconBytes(Response.Listener<ConditionalRequest.Result<byte[]>> listener, Response.ErrorListener errorListener, String channelIconPath, ValidatorStore.Validators validators) {
+        Log.d(TAG, "Calling conditional getChannelIconBytes");
 
-        GsonRequest<ChannelList> request = new GsonRequest<ChannelList>(
-                Request.Method.GET, url, ChannelList.class, listener, errorListener, mAccountName, mAccountPassword);
+        String url = getBaseHttpUri() + "/" + channelIconPath;
 
-        getRequestQueue().add(request);
+        return addRequest(new ConditionalBytesRequest(
+                url, validators, listener, errorListener, mAccountName, mAccountPassword));
     }
 
-    public void getChannelGrid(Response.Listener<ChannelList> listener, Response.ErrorListener errorListener) {
-        getChannelGrid(listener, errorListener, DEFAULT_CHANNEL_LIMIT);
+    public ClientFuture<ConditionalRequest.Result<byte[]>> getChannelIconBytesAsync(String channelIconPath, ValidatorStore.Validators validators) {
+        ClientFuture<ConditionalRequest.Result<byte[]>> future = new ClientFuture<>();
+
+        future.setRequest(getChannelIconBytes(future, future, channelIconPath, validators));
+
+        return future;
     }
 
-    public ChannelList getChannelGrid(int channelLimit) throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<ChannelList> future = RequestFuture.newFuture();
+    /**
+     * @param minStopSecs Only events ending after this, or 0 for no limit
+     * @param maxStartSecs Only events starting before this, or 0 for no limit
+     */
+    public Request<?> streamEventGridPage(EventStreamRequest.Consumer consumer, Response.Listener<EventStreamRequest.Result> listener, Response.ErrorListener errorListener, int start, int limit, long minStopSecs, long maxStartSecs) {
+        Log.d(TAG, "Calling streamEventGridPage, start: " + start + ", limit: " + limit + ", minStop: " + minStopSecs + ", maxStart: " + maxStartSecs);
 
-        getChannelGrid(future, future, channelLimit);
+        // No channel filter, sorted by channel number so each channel's events arrive together
+        String url = getBaseHttpUri() + "/api/epg/events/grid?start=" + Integer.toString(start) + "&limit=" + Integer.toString(limit) + "&sort=channelNumber&dir=ASC";
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
-    }
+        List<String> filters = new ArrayList<>();
 
-    public ChannelList getChannelGrid() throws InterruptedException, ExecutionException, TimeoutException {
-        return getChannelGrid(DEFAULT_CHANNEL_LIMIT);
+        if (minStopSecs > 0) {
+            filters.add(buildNumericFilter("stop", minStopSecs, "gt"));
+        }
+
+        if (maxStartSecs > 0) {
+            filters.add(buildNumericFilter("start", maxStartSecs, "lt"));
+        }
+
+        if (!filters.isEmpty()) {
+            url += "&filter=" + Uri.encode(buildFilterList(filters));
+        }
+
+        return addRequest(new EventStreamRequest(
+                url, consumer, listener, errorListener, mAccountName, mAccountPassword));
     }
 
-    public void getChannelIcon(Response.Listener<Bitmap> listener, Response.ErrorListener errorListener, String channelIconPath) {
-        Log.d(TAG, "Calling getChannelIcon");
+    public ClientFuture<EventStreamRequest.Result> streamEventGridPageAsync(EventStreamRequest.Consumer consumer, int start, int limit, long minStopSecs, long maxStartSecs) {
+        ClientFuture<EventStreamRequest.Result> future = new ClientFuture<>();
 
-        String url = getBaseHttpUri() + "/" + channelIconPath;
+        future.setRequest(streamEventGridPage(consumer, future, future, start, limit, minStopSecs, maxStartSecs));
 
-        ImageRequest request = new ImageRequest(
-                url, listener, errorListener, mAccountName, mAccountPassword);
+        return future;
+    }
 
-        getRequestQueue().add(request);
+    public EventStreamRequest.Result streamEventGridPage(EventStreamRequest.Consumer consumer, int start, int limit, long minStopSecs, long maxStartSecs) throws InterruptedException, ExecutionException, TimeoutException {
+        return await(streamEventGridPageAsync(consumer, start, limit, minStopSecs, maxStartSecs));
     }
 
-    public Bitmap getChannelIcon(String channelIconPath) throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<Bitmap> future = RequestFuture.newFuture();
+    /**
+     * Streams a page of a single channel's events, starting within the given window.
+     *
+     * @param minStartSecs Only events starting at or after this, or 0 for no limit
+     * @param maxStartSecs Only events starting before this, or 0 for no limit
+     */
+    public Request<?> streamChannelEventPage(EventStreamRequest.Consumer consumer, Response.Listener<EventStreamRequest.Result> listener, Response.ErrorListener errorListener, String channelUuid, int start, int limit, long minStartSecs, long maxStartSecs) {
+        Log.d(TAG, "Calling streamChannelEventPage for channel: " + channelUuid + ", start: " + start + ", minStart: " + minStartSecs + ", maxStart: " + maxStartSecs);
 
-        getChannelIcon(future, future, channelIconPath);
+        String url = getBaseHttpUri() + "/api/epg/events/grid?channel=" + channelUuid + "&start=" + Integer.toString(start) + "&limit=" + Integer.toString(limit) + "&sort=start&dir=ASC";
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
-    }
+        List<String> filters = new ArrayList<>();
 
-    public void getEventGrid(Response.Listener<EventList> listener, Response.ErrorListener errorListener, String channelUuid, int eventLimit) {
-        Log.d(TAG, "Calling getEventGrid for channel: " + channelUuid);
+        if (minStartSecs > 0) {
+            filters.add(buildNumericFilter("start", minStartSecs - 1, "gt"));
+        }
 
-        String url = getBaseHttpUri() + "/api/epg/events/grid?limit=" + Integer.toString(eventLimit) + "&channel=" + channelUuid;
+        if (maxStartSecs > 0) {
+            filters.add(buildNumericFilter("start", maxStartSecs, "lt"));
+        }
 
-        GsonRequest<EventList> request = new GsonRequest<EventList>(
-                Request.Method.GET, url, EventList.class, listener, errorListener, mAccountName, mAccountPassword);
+        if (!filters.isEmpty()) {
+            url += "&filter=" + Uri.encode(buildFilterList(filters));
+        }
 
-        getRequestQueue().add(request);
+        return addRequest(new EventStreamRequest(
+                url, consumer, listener, errorListener, mAccountName, mAccountPassword));
     }
 
-    public void getEventGrid(Response.Listener<EventList> listener, Response.ErrorListener errorListener, String channelUuid) {
-        getEventGrid(listener, errorListener, channelUuid, DEFAULT_EVENT_LIMIT);
+    /**
+     * Streams all of a single channel's events starting within the given window, a page at a
+     * time. Cancelling the returned future cancels whichever page is outstanding.
+     *
+     * @return a future of the number of events streamed
+     */
+    public ClientFuture<Integer> streamChannelEventWindowAsync(EventStreamRequest.Consumer consumer, String channelUuid, long minStartSecs, long maxStartSecs) {
+        return streamChannelEventWindowAsync(consumer, channelUuid, minStartSecs, maxStartSecs, 0);
     }
 
-    public EventList getEventGrid(String channelUuid, int eventLimit) throws InterruptedException, ExecutionException, TimeoutException {
-        RequestFuture<EventList> future = RequestFuture.newFuture();
+    private ClientFuture<Integer> streamChannelEventWindowAsync(final EventStreamRequest.Consumer consumer, final String channelUuid, final long minStartSecs, final long maxStartSecs, final int start) {
+        ClientFuture<EventStreamRequest.Result> page = new ClientFuture<>();
 
-        getEventGrid(future, future, channelUuid, eventLimit);
+        page.setRequest(streamChannelEventPage(
+                consumer, page, page, channelUuid, start, CHANNEL_EVENT_PAGE_SIZE, minStartSecs, maxStartSecs));
+
+        return page.then(new ClientFuture.AsyncFunction<EventStreamRequest.Result, Integer>() {
+            @Override
+            public ClientFuture<Integer> apply(EventStreamRequest.Result result) {
+                int fetched = start + result.count;
+
+                if (result.count == CHANNEL_EVENT_PAGE_SIZE && fetched < result.totalCount) {
+                    return streamChannelEventWindowAsync(consumer, channelUuid, minStartSecs, maxStartSecs, fetched);
+                }
+
+                return ClientFuture.completed(fetched);
+            }
+        });
+    }
 
-        return future.get(mTimeout, TimeUnit.SECONDS);
+    private static String buildNumericFilter(String field, long value, String comparison) {
+        return "{\"field\":\"" + field + "\",\"type\":\"numeric\",\"value\":" + Long.toString(value) + ",\"comparison\":\"" + comparison + "\"}";
     }
 
-    public EventList getEventGrid(String channelUuid) throws InterruptedException, ExecutionException, TimeoutException {
-        return getEventGrid(channelUuid, DEFAULT_EVENT_LIMIT);
+    private static String buildFilterList(List<String> filters) {
+        return "[" + TextUtils.join(",", filters) + "]";
     }
 
     public static class KeyVal {
@@ -251,5 +460,6 @@ public class TVHClient {
 
     public static class EventList {
         public ArrayList<Event> entries;
+        public int totalCount;
     }
 }
@@ -0,0 +1,151 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.client;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.util.Map;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Persists, per account, the HTTP validators (ETag and Last-Modified) of responses we've already
+ * applied, so the next request for the same thing can be made conditional.
+ */
+public class ValidatorStore {
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+
+    private final SharedPreferences mSharedPreferences;
+    private final String mAccountName;
+
+    public static class Validators {
+        private static final String HEADER_ETAG = "ETag";
+        private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+        private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+        private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+        public final String etag;
+        public final String lastModified;
+
+        public Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return the response's validators, or null if it has none.
+         */
+        public static Validators fromHeaders(Map<String, String> headers) {
+            if (headers == null) {
+                return null;
+            }
+
+            String etag = headers.get(HEADER_ETAG);
+            String lastModified = headers.get(HEADER_LAST_MODIFIED);
+
+            if (etag == null && lastModified == null) {
+                return null;
+            }
+
+            return new Validators(etag, lastModified);
+        }
+
+        /**
+         * Adds the conditional request headers matching these validators.
+         */
+        public void addTo(Map<String, String> headers) {
+            if (etag != null) {
+                headers.put(HEADER_IF_NONE_MATCH, etag);
+            }
+
+            if (lastModified != null) {
+                headers.put(HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
+        }
+    }
+
+    public ValidatorStore(Context context, Account account) {
+        mSharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_HTTP_VALIDATORS, Context.MODE_PRIVATE);
+        mAccountName = account.name;
+    }
+
+    public Validators get(String key) {
+        String etag = mSharedPreferences.getString(buildKey(key, KEY_ETAG), null);
+        String lastModified = mSharedPreferences.getString(buildKey(key, KEY_LAST_MODIFIED), null);
+
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+
+        return new Validators(etag, lastModified);
+    }
+
+    /**
+     * Stores the given validators, or forgets any stored ones if null.
+     */
+    public void put(String key, Validators validators) {
+        if (validators == null) {
+            remove(key);
+            return;
+        }
+
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        putOrRemove(editor, buildKey(key, KEY_ETAG), validators.etag);
+        putOrRemove(editor, buildKey(key, KEY_LAST_MODIFIED), validators.lastModified);
+
+        editor.apply();
+    }
+
+    public void remove(String key) {
+        mSharedPreferences.edit()
+                .remove(buildKey(key, KEY_ETAG))
+                .remove(buildKey(key, KEY_LAST_MODIFIED))
+                .apply();
+    }
+
+    /**
+     * Forgets every validator stored for the account.
+     */
+    public void clear() {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        String prefix = mAccountName + "/";
+
+        for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                editor.remove(entry.getKey());
+            }
+        }
+
+        editor.apply();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (TextUtils.isEmpty(value)) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+
+    private String buildKey(String key, String name) {
+        return mAccountName + "/" + key + "/" + name;
+    }
+}
@@ -27,6 +27,9 @@ import ie.macinnes.tvheadend.client.TVHClient;
 public class Channel implements Comparable<Channel> {
     public static final long INVALID_CHANNEL_ID = -1;
 
+    // Bump whenever the hashed fields change, so every channel is rewritten on the next sync
+    private static final int CONTENT_HASH_VERSION = 1;
+
     private long mId = INVALID_CHANNEL_ID;
     private String mInputId;
     private String mType;
@@ -208,9 +211,36 @@ public class Channel implements Comparable<Channel> {
 
         channel.setInternalProviderData(providerData);
 
+        providerData.setContentHash(channel.computeContentHash());
+
         return channel;
     }
 
+    /**
+     * Hashes the fields we write, so the sync can skip channels which haven't changed. See
+     * {@link ContentHash}.
+     */
+    public long computeContentHash() {
+        long hash = ContentHash.OFFSET_BASIS;
+
+        hash = ContentHash.hashLong(hash, CONTENT_HASH_VERSION);
+        hash = ContentHash.hashString(hash, mInputId);
+        hash = ContentHash.hashString(hash, mType);
+        hash = ContentHash.hashString(hash, mDisplayNumber);
+        hash = ContentHash.hashString(hash, mDisplayName);
+        hash = ContentHash.hashString(hash, mDescription);
+        hash = ContentHash.hashString(hash, mIconUri);
+        hash = ContentHash.hashLong(hash, mTransportStreamId);
+        hash = ContentHash.hashLong(hash, mServiceId);
+
+        if (mInternalProviderData != null) {
+            hash = ContentHash.hashString(hash, mInternalProviderData.getUuid());
+            hash = ContentHash.hashString(hash, mInternalProviderData.getAccountName());
+        }
+
+        return hash;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -302,6 +332,7 @@ public class Channel implements Comparable<Channel> {
         // TODO: Replace with gson store
         private String mUuid;
         private String mAccountName;
+        private long mContentHash;
 
         public static InternalProviderData fromString(String string) {
             InternalProviderData providerData = new InternalProviderData();
@@ -309,15 +340,27 @@ public class Channel implements Comparable<Channel> {
 
             providerData.mUuid = parts[0];
 
-            if (parts.length == 2) {
+            if (parts.length >= 2) {
                 providerData.mAccountName = parts[1];
             }
 
+            if (parts.length >= 3) {
+                try {
+                    providerData.mContentHash = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    // Treated as no hash, the channel will be rewritten on the next sync
+                }
+            }
+
             return providerData;
         }
 
         public String toString() {
-            return mUuid + ":" + mAccountName;
+            if (mContentHash == 0) {
+                return mUuid + ":" + mAccountName;
+            }
+
+            return mUuid + ":" + mAccountName + ":" + mContentHash;
         }
 
         public String getUuid() {
@@ -336,6 +379,17 @@ public class Channel implements Comparable<Channel> {
             mAccountName = accountName;
         }
 
+        /**
+         * @return the channel's content hash, or 0 if it was written before hashes were stored.
+         */
+        public long getContentHash() {
+            return mContentHash;
+        }
+
+        public void setContentHash(long contentHash) {
+            mContentHash = contentHash;
+        }
+
         @Override
         public boolean equals(Object other) {
             if (!(other instanceof InternalProviderData)) {
@@ -0,0 +1,59 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.model;
+
+import android.text.TextUtils;
+
+/**
+ * 64 bit FNV-1a, for hashing model content. Unlike hashCode() it's stable across releases and
+ * devices, so the results can be persisted and compared on a later sync.
+ */
+final class ContentHash {
+    static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private ContentHash() {
+    }
+
+    private static long hashByte(long hash, int b) {
+        return (hash ^ (b & 0xff)) * PRIME;
+    }
+
+    static long hashLong(long hash, long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash = hashByte(hash, (int) (value >>> shift));
+        }
+
+        return hash;
+    }
+
+    static long hashString(long hash, String value) {
+        // Empty strings are written as nulls, so hash them the same. The length prefix keeps
+        // ("ab", "c") and ("a", "bc") apart.
+        if (TextUtils.isEmpty(value)) {
+            return hashLong(hash, 0);
+        }
+
+        hash = hashLong(hash, value.length());
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = hashByte(hash, c);
+            hash = hashByte(hash, c >>> 8);
+        }
+
+        return hash;
+    }
+}
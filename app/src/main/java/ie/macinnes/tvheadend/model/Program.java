@@ -31,6 +31,9 @@ public class Program implements Comparable<Program> {
     private static final long INVALID_LONG_VALUE = -1;
     private static final int INVALID_INT_VALUE = -1;
 
+    // Bump whenever the hashed fields change, so every program is rewritten on the next sync
+    private static final int CONTENT_HASH_VERSION = 1;
+
     private long mProgramId;
     private long mChannelId;
     private String mTitle;
@@ -241,12 +244,33 @@ public class Program implements Comparable<Program> {
 
         providerData.setEventId(clientEvent.eventId);
         providerData.setAccountName(account.name);
+        providerData.setContentHash(program.computeContentHash());
 
         program.setInternalProviderData(providerData);
 
         return program;
     }
 
+    /**
+     * Hashes the fields the user sees, so the sync can tell if a program has changed without
+     * reading the old one back in full. The result is persisted, see {@link ContentHash}.
+     */
+    public long computeContentHash() {
+        long hash = ContentHash.OFFSET_BASIS;
+
+        hash = ContentHash.hashLong(hash, CONTENT_HASH_VERSION);
+        hash = ContentHash.hashString(hash, mTitle);
+        hash = ContentHash.hashString(hash, mEpisodeTitle);
+        hash = ContentHash.hashString(hash, mShortDescription);
+        hash = ContentHash.hashString(hash, mLongDescription);
+        hash = ContentHash.hashLong(hash, mStartTimeUtcMillis);
+        hash = ContentHash.hashLong(hash, mEndTimeUtcMillis);
+        hash = ContentHash.hashString(hash, mSeasonDisplayNumber);
+        hash = ContentHash.hashString(hash, mEpisodeDisplayNumber);
+
+        return hash;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -376,6 +400,7 @@ public class Program implements Comparable<Program> {
         // TODO: Replace with gson store
         private String mEventId;
         private String mAccountName;
+        private long mContentHash;
 
         public static InternalProviderData fromString(String string) {
             InternalProviderData providerData = new InternalProviderData();
@@ -383,15 +408,27 @@ public class Program implements Comparable<Program> {
 
             providerData.mEventId = parts[0];
 
-            if (parts.length == 2) {
+            if (parts.length >= 2) {
                 providerData.mAccountName = parts[1];
             }
 
+            if (parts.length >= 3) {
+                try {
+                    providerData.mContentHash = Long.parseLong(parts[2]);
+                } catch (NumberFormatException e) {
+                    // Treated as no hash, the program will be rewritten on the next sync
+                }
+            }
+
             return providerData;
         }
 
         public String toString() {
-            return mEventId + ":" + mAccountName;
+            if (mContentHash == 0) {
+                return mEventId + ":" + mAccountName;
+            }
+
+            return mEventId + ":" + mAccountName + ":" + mContentHash;
         }
 
         public String getEventId() {
@@ -410,6 +447,17 @@ public class Program implements Comparable<Program> {
             mAccountName = accountName;
         }
 
+        /**
+         * @return the program's content hash, or 0 if it was written before hashes were stored.
+         */
+        public long getContentHash() {
+            return mContentHash;
+        }
+
+        public void setContentHash(long contentHash) {
+            mContentHash = contentHash;
+        }
+
         @Override
         public boolean equals(Object other) {
             if (!(other instanceof InternalProviderData)) {
@@ -0,0 +1,158 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.model;
+
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.util.LongSparseArray;
+
+/**
+ * A read only snapshot of just the program columns the sync needs to diff against, for every
+ * channel, held in flat arrays rather than as Program objects. Immutable once loaded, so it can
+ * be shared between sync threads.
+ */
+public class ProgramSnapshot {
+    public static final String[] PROJECTION = {
+            TvContract.Programs._ID,
+            TvContract.Programs.COLUMN_CHANNEL_ID,
+            TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_END_TIME_UTC_MILLIS,
+            TvContract.Programs.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+
+    // Rows must come back grouped by channel, and in start time order within each channel
+    public static final String SORT_ORDER = TvContract.Programs.COLUMN_CHANNEL_ID + ", "
+            + TvContract.Programs.COLUMN_START_TIME_UTC_MILLIS;
+
+    private static final ChannelPrograms EMPTY = new ChannelPrograms(null, 0, 0);
+
+    private final long[] mProgramIds;
+    private final long[] mStartTimes;
+    private final long[] mEndTimes;
+    private final String[] mEventIds;
+    private final long[] mContentHashes;
+
+    private final LongSparseArray<ChannelPrograms> mChannels = new LongSparseArray<>();
+
+    private ProgramSnapshot(int count) {
+        mProgramIds = new long[count];
+        mStartTimes = new long[count];
+        mEndTimes = new long[count];
+        mEventIds = new String[count];
+        mContentHashes = new long[count];
+    }
+
+    /**
+     * Builds a snapshot from a cursor over {@link #PROJECTION}, sorted by {@link #SORT_ORDER}.
+     */
+    public static ProgramSnapshot fromCursor(Cursor cursor) {
+        if (cursor == null || cursor.getCount() == 0) {
+            return new ProgramSnapshot(0);
+        }
+
+        ProgramSnapshot snapshot = new ProgramSnapshot(cursor.getCount());
+
+        int i = 0;
+        int channelOffset = 0;
+        long channelId = -1;
+
+        while (cursor.moveToNext()) {
+            long rowChannelId = cursor.getLong(1);
+
+            if (i > 0 && rowChannelId != channelId) {
+                snapshot.addChannel(channelId, channelOffset, i - channelOffset);
+                channelOffset = i;
+            }
+
+            channelId = rowChannelId;
+
+            snapshot.mProgramIds[i] = cursor.getLong(0);
+            snapshot.mStartTimes[i] = cursor.getLong(2);
+            snapshot.mEndTimes[i] = cursor.getLong(3);
+
+            if (!cursor.isNull(4)) {
+                Program.InternalProviderData providerData =
+                        Program.InternalProviderData.fromString(cursor.getString(4));
+
+                snapshot.mEventIds[i] = providerData.getEventId();
+                snapshot.mContentHashes[i] = providerData.getContentHash();
+            }
+
+            i++;
+        }
+
+        snapshot.addChannel(channelId, channelOffset, i - channelOffset);
+
+        return snapshot;
+    }
+
+    private void addChannel(long channelId, int offset, int count) {
+        mChannels.put(channelId, new ChannelPrograms(this, offset, count));
+    }
+
+    /**
+     * @return the given channel's programs, in start time order. Never null.
+     */
+    public ChannelPrograms get(long channelId) {
+        return mChannels.get(channelId, EMPTY);
+    }
+
+    public int getChannelCount() {
+        return mChannels.size();
+    }
+
+    public int getProgramCount() {
+        return mProgramIds.length;
+    }
+
+    /**
+     * A single channel's slice of the snapshot.
+     */
+    public static class ChannelPrograms {
+        private final ProgramSnapshot mSnapshot;
+        private final int mOffset;
+        private final int mCount;
+
+        private ChannelPrograms(ProgramSnapshot snapshot, int offset, int count) {
+            mSnapshot = snapshot;
+            mOffset = offset;
+            mCount = count;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        public long getProgramId(int index) {
+            return mSnapshot.mProgramIds[mOffset + index];
+        }
+
+        public long getStartTimeUtcMillis(int index) {
+            return mSnapshot.mStartTimes[mOffset + index];
+        }
+
+        public long getEndTimeUtcMillis(int index) {
+            return mSnapshot.mEndTimes[mOffset + index];
+        }
+
+        public String getEventId(int index) {
+            return mSnapshot.mEventIds[mOffset + index];
+        }
+
+        public long getContentHash(int index) {
+            return mSnapshot.mContentHashes[mOffset + index];
+        }
+    }
+}
@@ -19,9 +19,11 @@ import android.accounts.AccountManager;
 import android.accounts.AccountManagerCallback;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SyncStatusObserver;
 import android.media.tv.TvInputInfo;
@@ -39,7 +41,6 @@ import java.util.List;
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.R;
 import ie.macinnes.tvheadend.TvContractUtils;
-import ie.macinnes.tvheadend.client.TVHClient;
 import ie.macinnes.tvheadend.migrate.MigrateUtils;
 import ie.macinnes.tvheadend.sync.SyncUtils;
 
@@ -62,7 +63,6 @@ public class TvInputSetupActivity extends Activity {
         protected AccountManager mAccountManager;
 
         protected static Account sAccount;
-        protected static TVHClient sClient;
 
         @Override
         public int onProvideTheme() {
@@ -82,7 +82,6 @@ public class TvInputSetupActivity extends Activity {
             }
 
             mAccountManager = AccountManager.get(getActivity());
-            sClient = TVHClient.getInstance(getActivity());
         }
 
         protected Account getAccountByName(String name) {
@@ -302,9 +301,6 @@ public class TvInputSetupActivity extends Activity {
         @Override
         public void onGuidedActionClicked(GuidedAction action) {
             if (ACTION_ID_CONFIRM == action.getId()) {
-                // Setup the client with the selected account
-                sClient.setConnectionInfo(sAccount);
-
                 // Move onto the next step
                 GuidedStepFragment fragment = new SessionSelectorFragment();
                 fragment.setArguments(getArguments());
@@ -390,7 +386,11 @@ public class TvInputSetupActivity extends Activity {
     }
 
     public static class SyncingFragment extends BaseGuidedStepFragment {
+        private static final int ACTION_ID_PROCESSING = 1;
+
         private Object mSyncStatusChangedReceiverHandle;
+        private boolean mCompleted = false;
+
         private final SyncStatusObserver mSyncStatusObserver = new SyncStatusObserver() {
 
             @Override
@@ -398,15 +398,37 @@ public class TvInputSetupActivity extends Activity {
                 if (which == ContentResolver.SYNC_OBSERVER_TYPE_ACTIVE) {
                     if (!ContentResolver.isSyncActive(sAccount, Constants.CONTENT_AUTHORITY)) {
                         Log.d(TAG, "Initial Sync Completed");
+                        complete();
+                    }
+                }
+            }
+        };
 
-                        // Set up a periodic sync from now on
-                        SyncUtils.setUpPeriodicSync(sAccount);
+        private final BroadcastReceiver mSyncProgressReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!sAccount.name.equals(intent.getStringExtra(Constants.EXTRA_ACCOUNT_NAME))) {
+                    return;
+                }
 
-                        // Move to the CompletedFragment
-                        GuidedStepFragment fragment = new CompletedFragment();
-                        fragment.setArguments(getArguments());
-                        add(getFragmentManager(), fragment);
-                    }
+                int stage = intent.getIntExtra(Constants.EXTRA_SYNC_STAGE, 1);
+                int stageCount = intent.getIntExtra(Constants.EXTRA_SYNC_STAGE_COUNT, 1);
+                int channelsDone = intent.getIntExtra(Constants.EXTRA_SYNC_CHANNELS_DONE, 0);
+                int channelsTotal = intent.getIntExtra(Constants.EXTRA_SYNC_CHANNELS_TOTAL, 0);
+
+                GuidedAction action = findActionById(ACTION_ID_PROCESSING);
+
+                if (action != null) {
+                    action.setDescription("Stage " + stage + " of " + stageCount + ": "
+                            + channelsDone + " of " + channelsTotal + " channels");
+                    notifyActionChanged(findActionPositionById(ACTION_ID_PROCESSING));
+                }
+
+                // Once now and next are in, the guide is usable, the rest carries on in the
+                // background
+                if (intent.getBooleanExtra(Constants.EXTRA_SYNC_STAGE_COMPLETE, false)) {
+                    Log.d(TAG, "Initial Sync stage " + stage + " of " + stageCount + " completed");
+                    complete();
                 }
             }
         };
@@ -430,10 +452,40 @@ public class TvInputSetupActivity extends Activity {
         public void onStart() {
             super.onStart();
 
+            // Only the sync process, holding our signature permission, may send progress
+            getActivity().registerReceiver(
+                    mSyncProgressReceiver, new IntentFilter(Constants.ACTION_SYNC_PROGRESS),
+                    Constants.PERMISSION_SYNC_PROGRESS, null);
+
             // Force a EPG sync
             SyncUtils.requestSync(sAccount, true);
         }
 
+        @Override
+        public void onStop() {
+            super.onStop();
+
+            getActivity().unregisterReceiver(mSyncProgressReceiver);
+        }
+
+        private void complete() {
+            synchronized (this) {
+                if (mCompleted) {
+                    return;
+                }
+
+                mCompleted = true;
+            }
+
+            // Set up a periodic sync from now on
+            SyncUtils.setUpPeriodicSync(sAccount);
+
+            // Move to the CompletedFragment
+            GuidedStepFragment fragment = new CompletedFragment();
+            fragment.setArguments(getArguments());
+            add(getFragmentManager(), fragment);
+        }
+
         @Override
         public GuidedActionsStylist onCreateActionsStylist() {
             GuidedActionsStylist stylist = new GuidedActionsStylist() {
@@ -456,7 +508,7 @@ public class TvInputSetupActivity extends Activity {
         public GuidanceStylist.Guidance onCreateGuidance(Bundle savedInstanceState) {
             GuidanceStylist.Guidance guidance = new GuidanceStylist.Guidance(
                     "Syncing Channels and Program data",
-                    "Just a few seconds please :)",
+                    "Just a few seconds please, the rest of the guide will follow in the background :)",
                     "TVHeadend",
                     null);
 
@@ -466,6 +518,7 @@ public class TvInputSetupActivity extends Activity {
         @Override
         public void onCreateActions(@NonNull List<GuidedAction> actions, Bundle savedInstanceState) {
             GuidedAction action = new GuidedAction.Builder(getActivity())
+                    .id(ACTION_ID_PROCESSING)
                     .title("Processing")
                     .infoOnly(true)
                     .build();
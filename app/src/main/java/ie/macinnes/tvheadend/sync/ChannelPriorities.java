@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.content.Context;
+import android.util.LongSparseArray;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.TuneHistory;
+import ie.macinnes.tvheadend.model.Channel;
+
+/**
+ * Works out which channels should be synced first. In order: the channel currently being
+ * watched, other recently tuned channels, their neighbours, then everything else in channel
+ * number order. Lower values come first.
+ */
+public class ChannelPriorities {
+    // A tune this recent is assumed to still be on air
+    private static final long ON_AIR_MILLIS = TimeUnit.HOURS.toMillis(4);
+
+    // How many channels either side of a recently tuned channel count as its neighbours
+    private static final int NEIGHBOURHOOD = 5;
+
+    public static final int TIER_ON_AIR = 0;
+    public static final int TIER_RECENT = 1;
+    public static final int TIER_NEIGHBOUR = 2;
+    public static final int TIER_OTHER = 3;
+    public static final int TIER_COUNT = 4;
+
+    private static final int TIER_SIZE = 100000;
+
+    private final LongSparseArray<Integer> mPriorities = new LongSparseArray<>();
+
+    /**
+     * Note: Sorts the given list of channels into channel number order.
+     */
+    public ChannelPriorities(Context context, List<Channel> channels) {
+        // Channel number order, as the user sees them in the guide
+        Collections.sort(channels);
+
+        LongSparseArray<Integer> positions = new LongSparseArray<>();
+
+        for (int i = 0; i < channels.size(); i++) {
+            Channel channel = channels.get(i);
+
+            positions.put(channel.getId(), i);
+            mPriorities.put(channel.getId(), TIER_OTHER * TIER_SIZE + i);
+        }
+
+        final long nowMillis = System.currentTimeMillis();
+        List<TuneHistory.Entry> entries = TuneHistory.getEntries(context);
+
+        // Neighbours first, so the tuned channels themselves win below
+        for (TuneHistory.Entry entry : entries) {
+            Integer position = positions.get(entry.channelId);
+
+            if (position == null) {
+                continue;
+            }
+
+            int from = Math.max(0, position - NEIGHBOURHOOD);
+            int to = Math.min(channels.size() - 1, position + NEIGHBOURHOOD);
+
+            for (int i = from; i <= to; i++) {
+                boost(channels.get(i).getId(), TIER_NEIGHBOUR * TIER_SIZE + Math.abs(i - position));
+            }
+        }
+
+        for (int i = 0; i < entries.size(); i++) {
+            TuneHistory.Entry entry = entries.get(i);
+
+            if (i == 0 && nowMillis - entry.tunedMillis < ON_AIR_MILLIS) {
+                boost(entry.channelId, TIER_ON_AIR * TIER_SIZE);
+            } else {
+                boost(entry.channelId, TIER_RECENT * TIER_SIZE + i);
+            }
+        }
+    }
+
+    private void boost(long channelId, int priority) {
+        Integer current = mPriorities.get(channelId);
+
+        if (current != null && priority < current) {
+            mPriorities.put(channelId, priority);
+        }
+    }
+
+    /**
+     * Sorts the given channels into priority order.
+     */
+    public void sort(List<Channel> channels) {
+        Collections.sort(channels, new Comparator<Channel>() {
+            @Override
+            public int compare(Channel lhs, Channel rhs) {
+                return Integer.compare(get(lhs), get(rhs));
+            }
+        });
+    }
+
+    public int get(Channel channel) {
+        return get(channel.getId());
+    }
+
+    /**
+     * @return the channel's tier, one of the TIER_ constants.
+     */
+    public int getTier(Channel channel) {
+        return Math.min(get(channel) / TIER_SIZE, TIER_OTHER);
+    }
+
+    public int get(long channelId) {
+        Integer priority = mPriorities.get(channelId);
+
+        if (priority == null) {
+            return (TIER_OTHER + 1) * TIER_SIZE;
+        }
+
+        return priority;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.model.Channel;
+
+/**
+ * How far ahead to sync each channel's EPG, by its ChannelPriorities tier. Channels the user
+ * actually watches get a long horizon, the long tail only enough to fill the guide's first
+ * screens, so the EPG's size follows what's actually browsed.
+ */
+public class EpgHorizons {
+    // Indexed by tier: on air, recently tuned, neighbours of those, everything else
+    public static final long[] DEFAULT_TIER_HORIZONS_MS = {
+            TimeUnit.DAYS.toMillis(7),
+            TimeUnit.DAYS.toMillis(7),
+            TimeUnit.DAYS.toMillis(3),
+            TimeUnit.HOURS.toMillis(24),
+    };
+
+    private final ChannelPriorities mPriorities;
+    private final long[] mTierHorizonsMillis;
+
+    public EpgHorizons(ChannelPriorities priorities) {
+        this(priorities, DEFAULT_TIER_HORIZONS_MS);
+    }
+
+    /**
+     * @param tierHorizonsMillis The horizon of each of the ChannelPriorities tiers, in order
+     */
+    public EpgHorizons(ChannelPriorities priorities, long[] tierHorizonsMillis) {
+        if (tierHorizonsMillis.length != ChannelPriorities.TIER_COUNT) {
+            throw new IllegalArgumentException("Expected a horizon for each of the " + ChannelPriorities.TIER_COUNT + " tiers");
+        }
+
+        mPriorities = priorities;
+        mTierHorizonsMillis = tierHorizonsMillis;
+    }
+
+    /**
+     * @return the default horizons, cut short at the given horizon.
+     */
+    public static EpgHorizons withMaxHorizon(ChannelPriorities priorities, long maxHorizonMillis) {
+        long[] tierHorizonsMillis = new long[DEFAULT_TIER_HORIZONS_MS.length];
+
+        for (int i = 0; i < tierHorizonsMillis.length; i++) {
+            tierHorizonsMillis[i] = Math.min(DEFAULT_TIER_HORIZONS_MS[i], maxHorizonMillis);
+        }
+
+        return new EpgHorizons(priorities, tierHorizonsMillis);
+    }
+
+    public long getHorizonMillis(Channel channel) {
+        return mTierHorizonsMillis[mPriorities.getTier(channel)];
+    }
+
+    /**
+     * @return the shortest horizon of any of the channels, or 0 if there are none.
+     */
+    public long getMinHorizonMillis(List<Channel> channels) {
+        long minHorizonMillis = Long.MAX_VALUE;
+
+        for (Channel channel : channels) {
+            minHorizonMillis = Math.min(minHorizonMillis, getHorizonMillis(channel));
+        }
+
+        return minHorizonMillis == Long.MAX_VALUE ? 0 : minHorizonMillis;
+    }
+}
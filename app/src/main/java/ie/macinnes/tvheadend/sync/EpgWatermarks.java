@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Persists, per account and channel, when the channel's EPG was last synced, last fully synced,
+ * and the highest event stop time seen, so later syncs only need to fetch events beyond that
+ * point.
+ */
+public class EpgWatermarks {
+    private static final String KEY_LAST_SYNC = "last-sync";
+    private static final String KEY_MAX_STOP = "max-stop";
+    private static final String KEY_LAST_FULL_SYNC = "last-full-sync";
+
+    private final SharedPreferences mSharedPreferences;
+    private final String mAccountName;
+
+    public static class Watermark {
+        public final long lastSyncMillis;
+
+        /**
+         * When the channel last had all of its events synced, not just those after a window, or
+         * 0 if never.
+         */
+        public final long lastFullSyncMillis;
+
+        /**
+         * The highest event stop time seen, or 0 if the channel has no events.
+         */
+        public final long maxStopMillis;
+
+        public Watermark(long lastSyncMillis, long lastFullSyncMillis, long maxStopMillis) {
+            this.lastSyncMillis = lastSyncMillis;
+            this.lastFullSyncMillis = lastFullSyncMillis;
+            this.maxStopMillis = maxStopMillis;
+        }
+    }
+
+    public EpgWatermarks(Context context, Account account) {
+        mSharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_EPG_WATERMARKS, Context.MODE_PRIVATE);
+        mAccountName = account.name;
+    }
+
+    public Watermark get(String channelUuid) {
+        long lastSyncMillis = mSharedPreferences.getLong(buildKey(channelUuid, KEY_LAST_SYNC), 0);
+        long lastFullSyncMillis = mSharedPreferences.getLong(buildKey(channelUuid, KEY_LAST_FULL_SYNC), 0);
+        long maxStopMillis = mSharedPreferences.getLong(buildKey(channelUuid, KEY_MAX_STOP), 0);
+
+        if (lastSyncMillis == 0) {
+            return null;
+        }
+
+        return new Watermark(lastSyncMillis, lastFullSyncMillis, maxStopMillis);
+    }
+
+    public void put(String channelUuid, Watermark watermark) {
+        mSharedPreferences.edit()
+                .putLong(buildKey(channelUuid, KEY_LAST_SYNC), watermark.lastSyncMillis)
+                .putLong(buildKey(channelUuid, KEY_LAST_FULL_SYNC), watermark.lastFullSyncMillis)
+                .putLong(buildKey(channelUuid, KEY_MAX_STOP), watermark.maxStopMillis)
+                .apply();
+    }
+
+    public void remove(String channelUuid) {
+        mSharedPreferences.edit()
+                .remove(buildKey(channelUuid, KEY_LAST_SYNC))
+                .remove(buildKey(channelUuid, KEY_LAST_FULL_SYNC))
+                .remove(buildKey(channelUuid, KEY_MAX_STOP))
+                .apply();
+    }
+
+    public void clear() {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        String prefix = mAccountName + "/";
+
+        for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                editor.remove(entry.getKey());
+            }
+        }
+
+        editor.apply();
+    }
+
+    private String buildKey(String channelUuid, String name) {
+        return mAccountName + "/" + channelUuid + "/" + name;
+    }
+}
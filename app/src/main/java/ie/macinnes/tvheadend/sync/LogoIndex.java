@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Base64;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.client.ValidatorStore;
+
+/**
+ * Persists, per account, what was last written to each channel logo URI: the source URL, a
+ * digest of the image and the HTTP validators it came with. Lets the logo sync skip logos which
+ * haven't changed, without fetching, or at least without rewriting, them.
+ */
+public class LogoIndex {
+    private static final String KEY_SOURCE_URL = "source-url";
+    private static final String KEY_DIGEST = "digest";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "last-modified";
+    private static final String KEY_CHECKED = "checked";
+
+    private static final String[] KEYS = {
+            KEY_SOURCE_URL, KEY_DIGEST, KEY_ETAG, KEY_LAST_MODIFIED, KEY_CHECKED,
+    };
+
+    private static final String DIGEST_ALGORITHM = "SHA-1";
+
+    private final SharedPreferences mSharedPreferences;
+    private final String mAccountName;
+
+    public static class Entry {
+        public final String sourceUrl;
+        public final String digest;
+        public final ValidatorStore.Validators validators;
+        public final long checkedMillis;
+
+        public Entry(String sourceUrl, String digest, ValidatorStore.Validators validators, long checkedMillis) {
+            this.sourceUrl = sourceUrl;
+            this.digest = digest;
+            this.validators = validators;
+            this.checkedMillis = checkedMillis;
+        }
+    }
+
+    public LogoIndex(Context context, Account account) {
+        mSharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_LOGO_INDEX, Context.MODE_PRIVATE);
+        mAccountName = account.name;
+    }
+
+    /**
+     * @return what was last written to the logo URI, or null if nothing was.
+     */
+    public Entry get(Uri logoUri) {
+        String sourceUrl = mSharedPreferences.getString(buildKey(logoUri, KEY_SOURCE_URL), null);
+
+        if (sourceUrl == null) {
+            return null;
+        }
+
+        String etag = mSharedPreferences.getString(buildKey(logoUri, KEY_ETAG), null);
+        String lastModified = mSharedPreferences.getString(buildKey(logoUri, KEY_LAST_MODIFIED), null);
+
+        return new Entry(
+                sourceUrl,
+                mSharedPreferences.getString(buildKey(logoUri, KEY_DIGEST), null),
+                etag == null && lastModified == null ? null : new ValidatorStore.Validators(etag, lastModified),
+                mSharedPreferences.getLong(buildKey(logoUri, KEY_CHECKED), 0));
+    }
+
+    /**
+     * Collects entries to be written out together by {@link Batch#commit()}, rather than one
+     * write per logo. Safe to use from multiple threads.
+     */
+    public class Batch {
+        private final SharedPreferences.Editor mEditor = mSharedPreferences.edit();
+        private int mPending = 0;
+        private boolean mCommitted = false;
+
+        public synchronized void put(Uri logoUri, Entry entry) {
+            putEntry(mEditor, logoUri, entry);
+
+            if (mCommitted) {
+                // A straggler after the pass has finished, written on its own
+                mEditor.apply();
+            } else {
+                mPending++;
+            }
+        }
+
+        /**
+         * Writes out every entry put so far. Any put afterwards is written as it comes.
+         */
+        public synchronized void commit() {
+            if (mPending > 0) {
+                mEditor.apply();
+                mPending = 0;
+            }
+
+            mCommitted = true;
+        }
+    }
+
+    public Batch edit() {
+        return new Batch();
+    }
+
+    /**
+     * Forgets the given logo URIs, with a single write however many there are.
+     */
+    public void remove(Collection<Uri> logoUris) {
+        if (logoUris.isEmpty()) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        for (Uri logoUri : logoUris) {
+            for (String name : KEYS) {
+                editor.remove(buildKey(logoUri, name));
+            }
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * Forgets every logo written for the account.
+     */
+    public void clear() {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        String prefix = mAccountName + "/";
+
+        for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                editor.remove(entry.getKey());
+            }
+        }
+
+        editor.apply();
+    }
+
+    /**
+     * @return a digest of the image, to compare with {@link Entry#digest}, or null if the
+     *         platform can't provide one.
+     */
+    public static String computeDigest(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            return Base64.encodeToString(digest.digest(data), Base64.NO_WRAP);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    private void putEntry(SharedPreferences.Editor editor, Uri logoUri, Entry entry) {
+        editor.putString(buildKey(logoUri, KEY_SOURCE_URL), entry.sourceUrl);
+        putOrRemove(editor, buildKey(logoUri, KEY_DIGEST), entry.digest);
+        putOrRemove(editor, buildKey(logoUri, KEY_ETAG), entry.validators != null ? entry.validators.etag : null);
+        putOrRemove(editor, buildKey(logoUri, KEY_LAST_MODIFIED), entry.validators != null ? entry.validators.lastModified : null);
+        editor.putLong(buildKey(logoUri, KEY_CHECKED), entry.checkedMillis);
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (TextUtils.isEmpty(value)) {
+            editor.remove(key);
+        } else {
+            editor.putString(key, value);
+        }
+    }
+
+    private String buildKey(Uri logoUri, String name) {
+        return mAccountName + "/" + logoUri.toString() + "/" + name;
+    }
+}
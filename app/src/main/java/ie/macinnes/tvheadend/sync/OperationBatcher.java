@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * Groups ContentProviderOperations into batches by their estimated parcelled size, so each
+ * applyBatch() call is as large as it can safely be without hitting the Binder transaction limit.
+ * Not thread safe.
+ */
+public class OperationBatcher {
+    // The Binder transaction buffer is 1MB, shared by every transaction in flight in the process
+    public static final int DEFAULT_BYTE_BUDGET = 256 * 1024;
+
+    // Covers the operation's type, URI, selection and other fields around its values
+    private static final int OPERATION_OVERHEAD_BYTES = 256;
+
+    private final int mByteBudget;
+    private final Sink mSink;
+
+    private ArrayList<ContentProviderOperation> mOps = new ArrayList<>();
+    private int mBytes = 0;
+
+    public interface Sink {
+        /**
+         * Called with each full batch. Ownership of the list passes to the sink.
+         *
+         * @return false if the batch could not be accepted.
+         */
+        boolean onBatch(ArrayList<ContentProviderOperation> ops, int estimatedBytes);
+    }
+
+    public OperationBatcher(int byteBudget, Sink sink) {
+        mByteBudget = byteBudget;
+        mSink = sink;
+    }
+
+    /**
+     * Adds an operation, first flushing the current batch if the operation won't fit in it.
+     *
+     * @param values The values the operation was built with, or null if it has none.
+     * @return false if a flush was needed and failed.
+     */
+    public boolean add(ContentProviderOperation op, ContentValues values) {
+        int bytes = OPERATION_OVERHEAD_BYTES + estimateSize(values);
+
+        if (!mOps.isEmpty() && mBytes + bytes > mByteBudget) {
+            if (!flush()) {
+                return false;
+            }
+        }
+
+        mOps.add(op);
+        mBytes += bytes;
+
+        return true;
+    }
+
+    /**
+     * Hands any pending operations to the sink.
+     *
+     * @return false if the sink failed to accept them.
+     */
+    public boolean flush() {
+        if (mOps.isEmpty()) {
+            return true;
+        }
+
+        ArrayList<ContentProviderOperation> ops = mOps;
+        int bytes = mBytes;
+
+        mOps = new ArrayList<>();
+        mBytes = 0;
+
+        return mSink.onBatch(ops, bytes);
+    }
+
+    /**
+     * Estimates the size of the given values once written to a Parcel.
+     */
+    public static int estimateSize(ContentValues values) {
+        if (values == null) {
+            return 0;
+        }
+
+        // Entry count
+        int size = 4;
+
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            size += estimateStringSize(entry.getKey());
+
+            // Type tag
+            size += 4;
+
+            Object value = entry.getValue();
+
+            if (value instanceof String) {
+                size += estimateStringSize((String) value);
+            } else if (value instanceof Long || value instanceof Double) {
+                size += 8;
+            } else if (value instanceof byte[]) {
+                size += 4 + pad(((byte[]) value).length);
+            } else if (value != null) {
+                size += 4;
+            }
+        }
+
+        return size;
+    }
+
+    private static int estimateStringSize(String value) {
+        // Length, then UTF-16 chars plus a terminator, padded to 4 bytes
+        return 4 + pad((value.length() + 1) * 2);
+    }
+
+    private static int pad(int size) {
+        return (size + 3) & ~3;
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ie.macinnes.tvheadend.client.ClientFuture;
+import ie.macinnes.tvheadend.client.ConcurrencyLimiter;
+import ie.macinnes.tvheadend.model.Channel;
+import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.model.ProgramSnapshot;
+import ie.macinnes.tvheadend.tasks.ApplyBatchTask;
+import ie.macinnes.tvheadend.tasks.SyncProgramsTask;
+
+/**
+ * Syncs programs in three stages: fetch from the server, diff against TvProvider, and write the
+ * resulting batches back. Each stage has its own concurrency, and a bounded queue in front of it,
+ * so a stage that falls behind blocks the one feeding it rather than letting work pile up.
+ */
+public class ProgramSyncPipeline {
+    private static final String TAG = ProgramSyncPipeline.class.getName();
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final int DIFF_CONCURRENCY = CPU_COUNT;
+
+    // TvProvider serialises writes anyway, a single writer avoids contending with ourselves
+    private static final int WRITE_CONCURRENCY = 1;
+
+    // Fetches spend most of their time waiting on the server, so don't hold a thread while
+    // they're outstanding, only a slot. No more are started than the server's concurrency limit
+    // allows, so they don't sit queued in the transport while their deadlines run.
+    private static final int MAX_ASYNC_FETCHES = 64;
+
+    // The server's limit can grow without a fetch completing to say so
+    private static final long FETCH_LIMIT_POLL_MS = 500;
+
+    private static final int BATCH_BYTE_BUDGET = OperationBatcher.DEFAULT_BYTE_BUDGET;
+
+    private static final SyncScheduler sDiffStage =
+            new SyncScheduler("EpgDiff", DIFF_CONCURRENCY, DIFF_CONCURRENCY * 2);
+    private static final SyncScheduler sWriteStage =
+            new SyncScheduler("EpgWrite", WRITE_CONCURRENCY, 8);
+
+    // Hands completed asynchronous fetches on to the diff stage, off Volley's delivery thread
+    private static final ExecutorService sFetchCallbackExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "EpgFetchCallback");
+                }
+            });
+
+    private final Context mContext;
+    private final Account mAccount;
+    private final ProgramSnapshot mSnapshot;
+    private final ChannelPriorities mPriorities;
+    private final CancellationSignal mCancellationSignal;
+    private final Listener mListener;
+    private final CountDownLatch mRemaining;
+    private final ConcurrencyLimiter mFetchLimiter;
+
+    private final Object mAsyncFetchLock = new Object();
+    private int mAsyncFetchCount = 0;
+    private final Set<ClientFuture<ProgramList>> mAsyncFetches =
+            Collections.newSetFromMap(new ConcurrentHashMap<ClientFuture<ProgramList>, Boolean>());
+
+    public interface Fetcher {
+        /**
+         * Starts fetching a channel's programs from the server, without blocking.
+         */
+        ClientFuture<ProgramList> fetch(Channel channel);
+    }
+
+    public interface Listener {
+        /**
+         * Called once for every channel, once all of its batches have been written or the
+         * channel has failed or been cancelled. Called on a pipeline thread.
+         */
+        void onChannelSynced(Channel channel, ProgramList programList, boolean completed);
+    }
+
+    /**
+     * @param snapshot The existing programs, which channels are diffed against
+     * @param fetchLimiter The server's concurrency limiter, which bounds the fetches started at
+     *                     once, or null to allow up to {@link #MAX_ASYNC_FETCHES}
+     */
+    public ProgramSyncPipeline(Context context, Account account, ProgramSnapshot snapshot, ChannelPriorities priorities, CancellationSignal cancellationSignal, ConcurrencyLimiter fetchLimiter, int channelCount, Listener listener) {
+        mContext = context;
+        mAccount = account;
+        mSnapshot = snapshot;
+        mPriorities = priorities;
+        mCancellationSignal = cancellationSignal;
+        mFetchLimiter = fetchLimiter;
+        mListener = listener;
+        mRemaining = new CountDownLatch(channelCount);
+
+        if (mCancellationSignal != null) {
+            mCancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    for (ClientFuture<ProgramList> future : mAsyncFetches) {
+                        future.cancel(true);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts fetching a channel's programs, which are then diffed and written. Only blocks once
+     * the server's concurrency limit, or {@link #MAX_ASYNC_FETCHES}, fetches are outstanding, so
+     * many channels can be fetched at once without a thread apiece.
+     *
+     * @param windowStartMillis see {@link SyncProgramsTask}
+     */
+    public void fetch(final Channel channel, Fetcher fetcher, final long windowStartMillis) {
+        if (mCancellationSignal != null && mCancellationSignal.isCanceled()) {
+            finishChannel(channel, null, false);
+            return;
+        }
+
+        try {
+            acquireAsyncFetchSlot();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while starting fetch: " + e.getLocalizedMessage());
+            Thread.currentThread().interrupt();
+            finishChannel(channel, null, false);
+            return;
+        }
+
+        final ClientFuture<ProgramList> future = fetcher.fetch(channel);
+        mAsyncFetches.add(future);
+
+        future.addCallback(new ClientFuture.Callback<ProgramList>() {
+            @Override
+            public void onSuccess(ProgramList programList) {
+                onFetched();
+
+                if (programList == null) {
+                    finishChannel(channel, null, false);
+                } else {
+                    diff(channel, programList, windowStartMillis);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                onFetched();
+
+                Log.w(TAG, "Failed to fetch programs for channel " + channel.toString() + ": " + error.getLocalizedMessage());
+                finishChannel(channel, null, false);
+            }
+
+            private void onFetched() {
+                mAsyncFetches.remove(future);
+                releaseAsyncFetchSlot();
+            }
+        }, sFetchCallbackExecutor);
+    }
+
+    private void acquireAsyncFetchSlot() throws InterruptedException {
+        synchronized (mAsyncFetchLock) {
+            while (mAsyncFetchCount >= getAsyncFetchLimit()) {
+                mAsyncFetchLock.wait(FETCH_LIMIT_POLL_MS);
+            }
+
+            mAsyncFetchCount++;
+        }
+    }
+
+    private void releaseAsyncFetchSlot() {
+        synchronized (mAsyncFetchLock) {
+            mAsyncFetchCount--;
+            mAsyncFetchLock.notifyAll();
+        }
+    }
+
+    private int getAsyncFetchLimit() {
+        if (mFetchLimiter == null) {
+            return MAX_ASYNC_FETCHES;
+        }
+
+        return Math.min(mFetchLimiter.getLimit(), MAX_ASYNC_FETCHES);
+    }
+
+    /**
+     * Counts a channel which won't be fetched at all as failed.
+     */
+    public void skip(Channel channel) {
+        finishChannel(channel, null, false);
+    }
+
+    /**
+     * Queues an already fetched channel's programs to be diffed and written.
+     *
+     * @param windowStartMillis see {@link SyncProgramsTask}
+     */
+    public void diff(final Channel channel, final ProgramList programList, long windowStartMillis) {
+        final ChannelSync channelSync = new ChannelSync(channel, programList);
+
+        SyncProgramsTask task = new SyncProgramsTask(
+                channel, mAccount, programList, mSnapshot.get(channel.getId()), windowStartMillis, BATCH_BYTE_BUDGET,
+                mPriorities.get(channel), mCancellationSignal) {
+            @Override
+            protected boolean onBatch(ArrayList<ContentProviderOperation> ops, int estimatedBytes) {
+                return channelSync.write(ops, estimatedBytes);
+            }
+
+            @Override
+            protected void onPostExecute(boolean completed) {
+                channelSync.done(completed);
+            }
+
+            @Override
+            protected void onCancelled() {
+                channelSync.done(false);
+            }
+        };
+
+        if (!submit(sDiffStage, task)) {
+            channelSync.done(false);
+        }
+    }
+
+    /**
+     * Waits for every channel to make its way through the pipeline.
+     */
+    public void await() throws InterruptedException {
+        mRemaining.await();
+    }
+
+    public void logMetrics() {
+        sDiffStage.logMetrics();
+        sWriteStage.logMetrics();
+        ApplyBatchTask.logMetrics();
+    }
+
+    private boolean submit(SyncScheduler stage, SyncScheduler.Task task) {
+        try {
+            stage.submit(task);
+            return true;
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while queueing sync task: " + e.getLocalizedMessage());
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void finishChannel(Channel channel, ProgramList programList, boolean completed) {
+        try {
+            mListener.onChannelSynced(channel, programList, completed);
+        } finally {
+            mRemaining.countDown();
+        }
+    }
+
+    /**
+     * Tracks a channel's diff and outstanding writes, the channel is finished once all are done.
+     */
+    private class ChannelSync {
+        private final Channel mChannel;
+        private final ProgramList mProgramList;
+        private final int mPriority;
+
+        // Starts at one, for the diff itself
+        private final AtomicInteger mPending = new AtomicInteger(1);
+        private volatile boolean mFailed = false;
+
+        public ChannelSync(Channel channel, ProgramList programList) {
+            mChannel = channel;
+            mProgramList = programList;
+            mPriority = mPriorities.get(channel);
+        }
+
+        public boolean write(ArrayList<ContentProviderOperation> ops, int estimatedBytes) {
+            mPending.incrementAndGet();
+
+            ApplyBatchTask task = new ApplyBatchTask(mContext, ops, estimatedBytes, mPriority, mCancellationSignal) {
+                @Override
+                protected void onPostExecute(boolean completed) {
+                    done(completed);
+                }
+
+                @Override
+                protected void onCancelled() {
+                    done(false);
+                }
+            };
+
+            if (!submit(sWriteStage, task)) {
+                done(false);
+                return false;
+            }
+
+            return true;
+        }
+
+        public void done(boolean completed) {
+            if (!completed) {
+                mFailed = true;
+            }
+
+            if (mPending.decrementAndGet() == 0) {
+                finishChannel(mChannel, mProgramList, !mFailed);
+            }
+        }
+    }
+}
@@ -18,14 +18,20 @@ package ie.macinnes.tvheadend.sync;
 import android.accounts.Account;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.SyncResult;
 import android.media.tv.TvContract;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.SparseArray;
@@ -33,25 +39,33 @@ import android.util.SparseArray;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ie.macinnes.tvheadend.Constants;
 import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.client.ClientFuture;
+import ie.macinnes.tvheadend.client.ConditionalRequest;
+import ie.macinnes.tvheadend.client.EventStreamRequest;
+import ie.macinnes.tvheadend.client.ResponseDecoder;
+import ie.macinnes.tvheadend.client.RetryPolicy;
 import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.client.ValidatorStore;
 import ie.macinnes.tvheadend.model.Channel;
 import ie.macinnes.tvheadend.model.ChannelList;
+import ie.macinnes.tvheadend.model.Program;
+import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.model.ProgramSnapshot;
 import ie.macinnes.tvheadend.tasks.SyncLogosTask;
-import ie.macinnes.tvheadend.tasks.SyncProgramsTask;
 
 
 public class SyncAdapter extends AbstractThreadedSyncAdapter {
@@ -60,38 +74,52 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     private final Context mContext;
     private final ContentResolver mContentResolver;
 
-    private final TVHClient mClient;
+    // Each sync runs on its own thread, and several may run at once for different accounts
+    private final Map<Thread, CancellationSignal> mCancellationSignals = new ConcurrentHashMap<>();
 
-    private boolean mIsCancelled = false;
-    private ArrayList<AsyncTask> mPendingTasks = new ArrayList<AsyncTask>();
+    // Logos are synced by a single, long running, task, on their own scheduler so they never
+    // hold up the program sync pipeline.
+    private static final int LOGO_SYNC_PRIORITY = Integer.MAX_VALUE;
 
-    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
-    private static final int INITIAL_POOL_SIZE = 1;
-    private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2;
-    private static final int KEEP_ALIVE_TIME = 1;
+    // Incremental syncs fall back to a full resync once the last sync is older than this
+    private static final long FULL_RESYNC_INTERVAL_MS = TimeUnit.HOURS.toMillis(48);
 
-    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-        private final AtomicInteger mCount = new AtomicInteger(1);
+    // Incremental syncs re-fetch events ending within this long before the watermark, to pick
+    // up any last minute changes around the previous edge of the EPG
+    private static final long INCREMENTAL_OVERLAP_MS = TimeUnit.HOURS.toMillis(1);
 
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "EpgSyncTask #" + mCount.getAndIncrement());
-        }
+    // Quick syncs give up on a channel's events after this long
+    private static final long CHANNEL_FETCH_DEADLINE_MS = TimeUnit.SECONDS.toMillis(30);
+
+    // Retries shared by all of a sync's requests, so a server that's down fails the sync quickly
+    private static final int SYNC_RETRY_BUDGET = 20;
+
+    // A resumed sync fetches the remaining channels one by one, rather than in bulk, if there
+    // are no more than this many
+    private static final int MAX_PER_CHANNEL_RESUME = 25;
+
+    private static final long CANCELLATION_POLL_MS = 500;
+
+    // The horizon of each of the first run's stages: now and next, the next few hours, then
+    // everything (0)
+    private static final long[] FIRST_RUN_STAGE_HORIZONS_MS = {
+            TimeUnit.HOURS.toMillis(1),
+            TimeUnit.HOURS.toMillis(6),
+            0,
     };
 
-    private static final BlockingQueue<Runnable> sPoolWorkQueue =
-            new LinkedBlockingQueue<Runnable>();
+    // How often to report progress as channels complete
+    private static final long PROGRESS_INTERVAL_MS = 500;
+
+    private static final String CHANNEL_GRID_VALIDATORS_KEY = "channel-grid";
 
-    private static final Executor sExecutor
-            = new ThreadPoolExecutor(INITIAL_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE_TIME,
-            TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
+    private static final SyncScheduler sLogoScheduler = new SyncScheduler("SyncLogosTask", 1, 2);
 
     public SyncAdapter(Context context, boolean autoInitialize) {
         super(context, autoInitialize);
 
         mContext = context;
         mContentResolver = context.getContentResolver();
-
-        mClient = TVHClient.getInstance(context);
     }
 
     public SyncAdapter(Context context, boolean autoInitialize, boolean allowParallelSyncs) {
@@ -99,37 +127,58 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
         mContext = context;
         mContentResolver = context.getContentResolver();
-
-        mClient = TVHClient.getInstance(context);
     }
 
     @Override
     public void onSyncCanceled() {
         Log.d(TAG, "Sync cancellation requested");
-        mIsCancelled = true;
 
-        Log.d(TAG, "Cancelling " + mPendingTasks.size() + " pending tasks");
+        // Any queued or running tasks check the signal, and wind themselves up
+        for (CancellationSignal cancellationSignal : mCancellationSignals.values()) {
+            cancellationSignal.cancel();
+        }
+    }
+
+    @Override
+    public void onSyncCanceled(Thread thread) {
+        Log.d(TAG, "Sync cancellation requested for thread: " + thread.getName());
 
-        while (mPendingTasks.size() != 0) {
-            AsyncTask asyncTask = mPendingTasks.get(0);
-            asyncTask.cancel(true);
-            mPendingTasks.remove(asyncTask);
+        CancellationSignal cancellationSignal = mCancellationSignals.get(thread);
+
+        if (cancellationSignal != null) {
+            cancellationSignal.cancel();
         }
     }
 
+    /**
+     * @return the cancellation signal of the sync running on the current thread.
+     */
+    private CancellationSignal getCancellationSignal() {
+        return mCancellationSignals.get(Thread.currentThread());
+    }
+
     public boolean isCancelled() {
-        return mIsCancelled;
+        CancellationSignal cancellationSignal = getCancellationSignal();
+
+        return cancellationSignal != null && cancellationSignal.isCanceled();
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
-        Log.d(TAG, "Starting sync for account: " + account.toString());
+        mCancellationSignals.put(Thread.currentThread(), new CancellationSignal());
+
+        try {
+            performSync(account, extras, syncResult);
+        } finally {
+            mCancellationSignals.remove(Thread.currentThread());
+        }
+    }
 
-        mIsCancelled = false;
+    private void performSync(Account account, Bundle extras, SyncResult syncResult) {
+        Log.d(TAG, "Starting sync for account: " + account.toString());
 
-        // TODO: The TVHClient class needs to support multiple accounts, this is racy as other
-        // processes may be using this singleton with different creds.
-        mClient.setConnectionInfo(account);
+        // Each account gets its own client, so syncs for different servers don't interfere
+        TVHClient client = TVHClient.getInstance(mContext, account);
 
         if (isCancelled()) {
             Log.d(TAG, "Sync cancelled");
@@ -137,7 +186,7 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         }
 
         // Sync Channels
-        if (!syncChannels(account)) {
+        if (!syncChannels(account, client, syncResult)) {
             return;
         }
 
@@ -148,7 +197,19 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
         // Sync Programs
         final boolean quickSync = extras.getBoolean(Constants.SYNC_EXTRAS_QUICK, false);
-        if (!syncPrograms(account, quickSync)) {
+        final boolean fullSync = extras.getBoolean(Constants.SYNC_EXTRAS_FULL, false);
+
+        if (quickSync) {
+            // Used by the Setup Wizard. Get now and next into the guide as quickly as possible,
+            // then fill it out in stages, the last being a regular full sync.
+            for (int i = 0; i < FIRST_RUN_STAGE_HORIZONS_MS.length; i++) {
+                Stage stage = new Stage(i + 1, FIRST_RUN_STAGE_HORIZONS_MS.length, FIRST_RUN_STAGE_HORIZONS_MS[i]);
+
+                if (!syncPrograms(account, client, stage.isLast(), stage)) {
+                    return;
+                }
+            }
+        } else if (!syncPrograms(account, client, fullSync, null)) {
             return;
         }
 
@@ -156,13 +217,23 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         Log.d(TAG, "Completed sync for account: " + account.toString());
     }
 
-    private boolean syncChannels(final Account account) {
+    private boolean syncChannels(final Account account, final TVHClient client, SyncResult syncResult) {
         Log.d(TAG, "Starting channel sync");
 
-        ChannelList channelList;
+        final ValidatorStore validatorStore = new ValidatorStore(mContext, account);
+        LogoIndex logoIndex = new LogoIndex(mContext, account);
+
+        // Validators are only any use if what they describe is still in the DB
+        ValidatorStore.Validators validators = null;
+
+        if (TvContractUtils.getChannelCount(mContext, account) > 0) {
+            validators = validatorStore.get(CHANNEL_GRID_VALIDATORS_KEY);
+        }
+
+        ConditionalRequest.Result<TVHClient.ChannelList> result;
 
         try {
-            channelList = ChannelList.fromClientChannelList(mClient.getChannelGrid(), account);
+            result = client.getChannelGrid(validators);
         } catch (InterruptedException|ExecutionException e) {
             // Something went wrong
             Log.w(TAG, "Failed to fetch channel list from server: " + e.getLocalizedMessage(), e);
@@ -173,19 +244,63 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             return false;
         }
 
+        if (result.notModified) {
+            Log.d(TAG, "Channel list not modified, skipping channel sync");
+            return true;
+        }
+
+        ChannelList channelList = ChannelList.fromClientChannelList(result.value, account);
+
         // Sort the list of Channels
         Collections.sort(channelList);
 
         // Build a channel map, mapping from Original Network ID -> RowID's
-        SparseArray<Long> channelMap = TvContractUtils.buildChannelMap(mContext, channelList);
+        SparseArray<Long> contentHashes = new SparseArray<>();
+        SparseArray<Long> channelMap = TvContractUtils.buildChannelMap(mContext, account, channelList, contentHashes);
+
+        EpgWatermarks watermarks = new EpgWatermarks(mContext, account);
+
+        // The channel behind each operation in the current batch, or null for deletes, so new
+        // channels' IDs can be picked up from the batch's results
+        final List<Channel> batchChannels = new ArrayList<>();
 
-        // Prep a mapping for Logo content URI and URLs
-        Map<Uri, String> logos = new HashMap<>();
+        OperationBatcher batcher = new OperationBatcher(OperationBatcher.DEFAULT_BYTE_BUDGET, new OperationBatcher.Sink() {
+            @Override
+            public boolean onBatch(ArrayList<ContentProviderOperation> ops, int estimatedBytes) {
+                ContentProviderResult[] results;
+
+                try {
+                    results = mContentResolver.applyBatch(Constants.CONTENT_AUTHORITY, ops);
+                } catch (RemoteException | OperationApplicationException e) {
+                    Log.e(TAG, "Failed to apply batch of " + ops.size() + " channel operations.", e);
+                    return false;
+                }
+
+                for (int i = 0; i < ops.size(); i++) {
+                    Channel channel = batchChannels.get(i);
+
+                    // Inserts give back the new row's URI, updates only a count
+                    if (channel != null && results[i].uri != null) {
+                        channel.setId(ContentUris.parseId(results[i].uri));
+                    }
+                }
+
+                batchChannels.clear();
+
+                return true;
+            }
+        });
 
         // Update the Channels DB - If a channel exists, update it. If not, insert a new one.
         ContentValues values;
         Long rowId;
         Uri channelUri;
+        ContentProviderOperation op;
+        Long contentHash;
+        int added = 0;
+        int updated = 0;
+        int unchanged = 0;
+        int deleted = 0;
 
         for (Channel channel : channelList) {
             if (isCancelled()) {
@@ -199,22 +314,40 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
             if (rowId == null) {
                 Log.d(TAG, "Adding channel: " + channel.toString());
-                channelUri = mContentResolver.insert(TvContract.Channels.CONTENT_URI, values);
+                op = ContentProviderOperation.newInsert(TvContract.Channels.CONTENT_URI)
+                        .withValues(values)
+                        .build();
+
+                // A new channel has no programs yet, whatever we synced for it before
+                watermarks.remove(channel.getInternalProviderData().getUuid());
+                added++;
+            } else if ((contentHash = contentHashes.get(channel.getOriginalNetworkId())) != null
+                    && contentHash == channel.getInternalProviderData().getContentHash()) {
+                // Rewriting it would only have TvProvider notify everyone of a non-change
+                channel.setId(rowId);
+                channelMap.remove(channel.getOriginalNetworkId());
+                unchanged++;
+                continue;
             } else {
                 Log.d(TAG, "Updating channel: " + channel.toString());
-                channelUri = TvContract.buildChannelUri(rowId);
-                mContentResolver.update(channelUri, values, null, null);
+                updated++;
+                op = ContentProviderOperation.newUpdate(TvContract.buildChannelUri(rowId))
+                        .withValues(values)
+                        .build();
+                channel.setId(rowId);
                 channelMap.remove(channel.getOriginalNetworkId());
             }
 
-            // If we have a channel icon, add it to the logs map
-            if (channel.getIconUri() != null && !TextUtils.isEmpty(channel.getIconUri())) {
-                logos.put(TvContract.buildChannelLogoUri(channelUri), channel.getIconUri());
+            if (!batcher.add(op, values)) {
+                return false;
             }
+
+            batchChannels.add(channel);
         }
 
         // Update the Channels DB - Delete channels which no longer exist.
         int size = channelMap.size();
+        List<Uri> deletedLogos = new ArrayList<>(size);
         for (int i = 0; i < size; ++i) {
             if (isCancelled()) {
                 Log.d(TAG, "Sync cancelled");
@@ -223,21 +356,62 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
             rowId = channelMap.valueAt(i);
             Log.d(TAG, "Deleting channel: " + rowId);
-            mContentResolver.delete(TvContract.buildChannelUri(rowId), null, null);
+            channelUri = TvContract.buildChannelUri(rowId);
+
+            if (!batcher.add(ContentProviderOperation.newDelete(channelUri).build(), null)) {
+                return false;
+            }
+
+            batchChannels.add(null);
+            deleted++;
+
+            deletedLogos.add(TvContract.buildChannelLogoUri(channelUri));
         }
 
-        if (!logos.isEmpty()) {
-            SyncLogosTask syncLogosTask = new SyncLogosTask(mContext) {
-                @Override
-                protected void onPostExecute(Void voids) {
-                    mPendingTasks.remove(this);
-                }
+        if (!batcher.flush()) {
+            return false;
+        }
 
-                @Override
-                protected void onCancelled() {
-                    mPendingTasks.remove(this);
-                }
-            };
+        logoIndex.remove(deletedLogos);
+
+        Log.d(TAG, "Channels added: " + added + ", updated: " + updated + ", unchanged: " + unchanged + ", deleted: " + deleted);
+
+        syncResult.stats.numInserts += added;
+        syncResult.stats.numUpdates += updated;
+        syncResult.stats.numSkippedEntries += unchanged;
+        syncResult.stats.numDeletes += deleted;
+
+        // Map logo content URIs to URLs, in the order they should be synced: the channels the
+        // user is most likely to see first, recently tuned and low numbered ones, go first
+        ChannelPriorities priorities = new ChannelPriorities(mContext, channelList);
+        List<Channel> orderedChannels = new ArrayList<>(channelList);
+        priorities.sort(orderedChannels);
+
+        Map<Uri, String> logos = new LinkedHashMap<>();
+
+        for (Channel channel : orderedChannels) {
+            if (channel.getId() != Channel.INVALID_CHANNEL_ID && !TextUtils.isEmpty(channel.getIconUri())) {
+                logos.put(TvContract.buildChannelLogoUri(channel.getId()), channel.getIconUri());
+            }
+        }
+
+        // The grid validators are only kept once the logos are in place too, as a 304 next time
+        // skips the logo pass along with everything else
+        final ValidatorStore.Validators gridValidators = result.validators;
+
+        if (logos.isEmpty()) {
+            validatorStore.put(CHANNEL_GRID_VALIDATORS_KEY, gridValidators);
+        } else {
+            validatorStore.remove(CHANNEL_GRID_VALIDATORS_KEY);
+
+            SyncLogosTask syncLogosTask = new SyncLogosTask(
+                    mContext, client, logoIndex, logos, LOGO_SYNC_PRIORITY, getCancellationSignal(),
+                    new SyncLogosTask.Listener() {
+                        @Override
+                        public void onLogosSynced() {
+                            validatorStore.put(CHANNEL_GRID_VALIDATORS_KEY, gridValidators);
+                        }
+                    });
 
             if (isCancelled()) {
                 Log.d(TAG, "Sync cancelled");
@@ -245,7 +419,13 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             }
 
             Log.d(TAG, "Dispatching Logos Sync Task");
-            mPendingTasks.add(syncLogosTask.executeOnExecutor(sExecutor, logos));
+
+            try {
+                sLogoScheduler.submit(syncLogosTask);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while dispatching logo sync: " + e.getLocalizedMessage());
+                return false;
+            }
         }
 
         Log.d(TAG, "Completed channel sync");
@@ -253,8 +433,15 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         return true;
     }
 
-    private boolean syncPrograms(final Account account, final boolean quickSync) {
-        Log.d(TAG, "Starting program sync");
+    /**
+     * @param stage The first run stage, or null for a regular sync
+     */
+    private boolean syncPrograms(final Account account, final TVHClient client, final boolean fullSync, Stage stage) {
+        Log.d(TAG, "Starting program sync" + (stage == null ? "" : ", stage " + stage.number + " of " + stage.count));
+
+        // The early first run stages only fill in part of the EPG, and have no progress worth
+        // keeping
+        final boolean partial = stage != null && !stage.isLast();
 
         // Gather the list of channels from TvProvider
         // Select only a few columns
@@ -266,69 +453,573 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         };
 
         // Fetch the ChannelList
-        ChannelList channelList = TvContractUtils.getChannels(mContext, projection);
+        ChannelList channelList = TvContractUtils.getChannels(mContext, account, projection);
+
+        final EpgWatermarks watermarks = new EpgWatermarks(mContext, account);
+
+        // Sync the channels the user is most likely to look at first
+        ChannelPriorities priorities = new ChannelPriorities(mContext, channelList);
+        priorities.sort(channelList);
+
+        // And sync them further ahead than the rest
+        final EpgHorizons horizons = stage != null && stage.maxHorizonMillis > 0
+                ? EpgHorizons.withMaxHorizon(priorities, stage.maxHorizonMillis)
+                : new EpgHorizons(priorities);
+
+        final long syncStartMillis = System.currentTimeMillis();
+        final SyncProgress progress = new SyncProgress(mContext, account);
+        final RetryPolicy retryPolicy = new RetryPolicy(SYNC_RETRY_BUDGET);
+
+        long windowStartMillis = 0;
+        ChannelList pendingChannels = channelList;
+        boolean resuming = false;
+
+        if (!partial) {
+            if (!fullSync && progress.isResumable(syncStartMillis)) {
+                // Pick up where the last, unfinished, sync left off
+                resuming = true;
+                windowStartMillis = progress.getWindowStartMillis();
+                pendingChannels = new ChannelList();
+
+                for (Channel channel : channelList) {
+                    if (!progress.isChannelDone(channel.getInternalProviderData().getUuid())) {
+                        pendingChannels.add(channel);
+                    }
+                }
+
+                Log.d(TAG, "Resuming sync started at " + progress.getStartedMillis() + ", "
+                        + pendingChannels.size() + " of " + channelList.size() + " channels remaining");
+            } else {
+                if (!fullSync) {
+                    windowStartMillis = getIncrementalWindowStart(watermarks, channelList);
+                }
+
+                progress.begin(syncStartMillis, windowStartMillis);
+            }
+        }
+
+        // Load what we already have for every channel up front, in one go
+        ProgramSnapshot snapshot = TvContractUtils.getProgramSnapshot(mContext);
+
+        Log.d(TAG, "Loaded " + snapshot.getProgramCount() + " existing programs across " + snapshot.getChannelCount() + " channels");
+
+        final long finalWindowStartMillis = windowStartMillis;
+        final AtomicInteger failedChannels = new AtomicInteger();
+        final ProgressReporter progressReporter = new ProgressReporter(account, stage, pendingChannels.size());
+
+        progressReporter.report(false);
+
+        ProgramSyncPipeline pipeline = new ProgramSyncPipeline(
+                mContext, account, snapshot, priorities, getCancellationSignal(),
+                client.getServerLimiter(), pendingChannels.size(),
+                new ProgramSyncPipeline.Listener() {
+                    @Override
+                    public void onChannelSynced(Channel channel, ProgramList programList, boolean completed) {
+                        if (completed) {
+                            // A partial stage's events don't reach far enough to be a watermark
+                            if (!partial) {
+                                updateWatermark(watermarks, channel, programList, finalWindowStartMillis, syncStartMillis);
+                                progress.markChannelDone(channel.getInternalProviderData().getUuid());
+                            }
+                        } else {
+                            failedChannels.incrementAndGet();
+                        }
+
+                        progressReporter.onChannelDone();
+                    }
+                });
+
+        boolean fetched = true;
 
         // Update the EPG for each channel
-        final CountDownLatch countDownLatch = new CountDownLatch(channelList.size());
+        if (resuming && pendingChannels.size() <= MAX_PER_CHANNEL_RESUME) {
+            // Few enough channels are left that fetching them one by one beats paging through
+            // every channel's events again
+            ProgramSyncPipeline.Fetcher fetcher = new ProgramSyncPipeline.Fetcher() {
+                @Override
+                public ClientFuture<ProgramList> fetch(Channel channel) {
+                    return fetchChannelPrograms(account, client, channel, 0, syncStartMillis + horizons.getHorizonMillis(channel), retryPolicy);
+                }
+            };
 
-        for (Channel channel : channelList) {
-            updateChannelPrograms(account, countDownLatch, channel, quickSync);
+            for (Channel channel : pendingChannels) {
+                pipeline.fetch(channel, fetcher, 0);
+            }
+        } else {
+            fetched = bulkUpdatePrograms(account, client, pipeline, pendingChannels, windowStartMillis, horizons, syncStartMillis, retryPolicy);
         }
 
-        // Wait for all tasks to finish
+        // Wait for all channels to make it through the pipeline, including any handed on before
+        // the bulk fetch failed
         try {
-            countDownLatch.await();
+            pipeline.await();
         } catch (InterruptedException e) {
             Log.w(TAG, "Interrupted while awaiting program sync to complete: " + e.getLocalizedMessage());
             return false;
+        } finally {
+            // Keep whichever channels are done so far, for the next sync to resume from
+            progress.flush();
         }
 
+        if (!fetched) {
+            return false;
+        }
+
+        final boolean completed = failedChannels.get() == 0 && !isCancelled();
+
+        if (!partial && completed) {
+            progress.finish();
+        }
+
+        // The setup wizard moves on once the stage is reported complete, so it mustn't be if
+        // any channels are missing
+        progressReporter.report(completed);
+
+        Log.d(TAG, "Program sync retries: " + retryPolicy.getRetries() + ", retry budget left: " + retryPolicy.getRemainingBudget()
+                + ", failed channels: " + failedChannels.get());
+
+        pipeline.logMetrics();
+        client.getTransport().logMetrics();
+        ResponseDecoder.logMetrics();
+        TVHClient.getCoalescer().logMetrics();
+
         Log.d(TAG, "Completed program sync");
         return true;
     }
 
-    private boolean updateChannelPrograms(final Account account, final CountDownLatch countDownLatch, final Channel channel, final boolean quickSync) {
+    /**
+     * Works out where an incremental sync can start from, based on the channel's watermarks.
+     *
+     * @return the start of the incremental sync window, or 0 if a full resync is needed.
+     */
+    private long getIncrementalWindowStart(EpgWatermarks watermarks, ChannelList channelList) {
+        final long nowMillis = System.currentTimeMillis();
+        long windowStartMillis = Long.MAX_VALUE;
+
+        for (Channel channel : channelList) {
+            EpgWatermarks.Watermark watermark = watermarks.get(channel.getInternalProviderData().getUuid());
+
+            if (watermark == null
+                    || watermark.lastSyncMillis > nowMillis
+                    || watermark.lastFullSyncMillis > nowMillis
+                    || nowMillis - watermark.lastFullSyncMillis > FULL_RESYNC_INTERVAL_MS) {
+                // Never synced, the clock has gone backwards, or the last full sync is too old,
+                // do a full resync.
+                Log.d(TAG, "Watermark missing or inconsistent for channel " + channel.toString() + ", doing a full resync");
+                return 0;
+            }
+
+            // A channel with no events, or none left in the future, has nothing more to fetch
+            // before now, so mustn't drag the window back.
+            windowStartMillis = Math.min(windowStartMillis, Math.max(watermark.maxStopMillis, nowMillis));
+        }
+
+        if (windowStartMillis == Long.MAX_VALUE) {
+            // No channels
+            return 0;
+        }
+
+        Log.d(TAG, "Doing an incremental sync of events ending after " + (windowStartMillis - INCREMENTAL_OVERLAP_MS));
+
+        return windowStartMillis - INCREMENTAL_OVERLAP_MS;
+    }
+
+    /**
+     * Fetches the channel's events starting within the given window.
+     *
+     * @param minStartMillis The start of the window, or 0 for events already on air
+     * @param maxStartMillis The end of the window
+     */
+    private ClientFuture<ProgramList> fetchChannelPrograms(final Account account, final TVHClient client, final Channel channel, final long minStartMillis, final long maxStartMillis, RetryPolicy retryPolicy) {
         Log.d(TAG, "Fetching events for channel " + channel.toString());
 
-        TVHClient.EventList eventList;
+        final String channelUuid = channel.getInternalProviderData().getUuid();
 
-        String channelUuid = channel.getInternalProviderData().getUuid();
+        return retryPolicy.execute(new RetryPolicy.Attempt<ProgramList>() {
+            @Override
+            public ClientFuture<ProgramList> start() {
+                // A failed attempt may have got part way, each gets a fresh consumer
+                final ProgramListConsumer consumer = new ProgramListConsumer(account, 0);
+                consumer.addChannel(channel);
+
+                return client.streamChannelEventWindowAsync(consumer, channelUuid, minStartMillis / 1000, maxStartMillis / 1000)
+                        .withDeadline(CHANNEL_FETCH_DEADLINE_MS, TimeUnit.MILLISECONDS)
+                        .transform(new ClientFuture.Function<Integer, ProgramList>() {
+                            @Override
+                            public ProgramList apply(Integer count) {
+                                return consumer.getProgramList(channel);
+                            }
+                        });
+            }
+        });
+    }
 
-        try {
-            if (quickSync) {
-                // Used by the Setup Wizard, we do a quick sync in the forground, then a full sync
-                // in the background.
-                eventList = mClient.getEventGrid(channelUuid, TVHClient.QUICK_EVENT_LIMIT);
-            } else {
-                eventList = mClient.getEventGrid(channelUuid);
+    /**
+     * Fetches every channel's events up to the shortest of their horizons in bulk, then each
+     * channel with a longer horizon has the rest of its events fetched on its own. The pages come
+     * grouped by channel, so each channel is handed on to the diff stage as soon as the pages have
+     * moved past it, while the rest are still being fetched.
+     */
+    private boolean bulkUpdatePrograms(final Account account, final TVHClient client, final ProgramSyncPipeline pipeline, final ChannelList channelList, final long windowStartMillis, final EpgHorizons horizons, final long syncStartMillis, final RetryPolicy retryPolicy) {
+        if (channelList.isEmpty()) {
+            return true;
+        }
+
+        final long bulkHorizonMillis = syncStartMillis + horizons.getMinHorizonMillis(channelList);
+
+        Log.d(TAG, "Fetching events for " + channelList.size() + " channels in bulk, up to " + bulkHorizonMillis);
+
+        // Prep a ProgramList for each channel, which the streamed events are grouped into
+        ProgramListConsumer consumer = new ProgramListConsumer(account, windowStartMillis);
+
+        for (Channel channel : channelList) {
+            consumer.addChannel(channel);
+        }
+
+        // Page through the full event grid, or just the part after the window start
+        EventStreamRequest.Result page;
+        int start = 0;
+        int requests = 0;
+        int passed = 0;
+
+        do {
+            page = fetchEventPage(client, consumer, start, windowStartMillis, bulkHorizonMillis, retryPolicy);
+
+            if (page == null) {
+                // Channels already handed on carry on, the rest are failed
+                for (Channel channel : consumer.takeRemainingChannels()) {
+                    pipeline.skip(channel);
+                }
+
+                return false;
             }
-        } catch (InterruptedException|ExecutionException e) {
-            // Something went wrong
-            Log.w(TAG, "Failed to fetch event list from server: " + e.getLocalizedMessage(), e);
-            return false;
-        } catch (TimeoutException e) {
-            // Request timed out
-            Log.w(TAG, "Failed to fetch event  list from server, timed out");
-            return false;
+
+            requests++;
+            start += page.count;
+
+            for (Channel channel : consumer.takePassedChannels()) {
+                diffBulkPrograms(account, client, pipeline, channel, consumer.removeProgramList(channel),
+                        windowStartMillis, bulkHorizonMillis, syncStartMillis + horizons.getHorizonMillis(channel), retryPolicy);
+                passed++;
+            }
+        } while (page.count == TVHClient.BULK_EVENT_PAGE_SIZE && start < page.totalCount);
+
+        Log.d(TAG, "Fetched " + start + " events in " + requests + " requests, " + passed + " channels handed on early");
+
+        for (Channel channel : consumer.takeRemainingChannels()) {
+            diffBulkPrograms(account, client, pipeline, channel, consumer.removeProgramList(channel),
+                    windowStartMillis, bulkHorizonMillis, syncStartMillis + horizons.getHorizonMillis(channel), retryPolicy);
         }
 
-        // Prepare the SyncProgramsTask
-        final SyncProgramsTask syncProgramsTask = new SyncProgramsTask(mContext, channel, account) {
+        return true;
+    }
+
+    /**
+     * Hands a channel's bulk fetched programs over to the diff stage, once any beyond the bulk
+     * horizon have been added.
+     */
+    private void diffBulkPrograms(final Account account, final TVHClient client, ProgramSyncPipeline pipeline, Channel channel, final ProgramList programList, long windowStartMillis, final long bulkHorizonMillis, final long horizonMillis, final RetryPolicy retryPolicy) {
+        // The grid isn't in start time order within a channel, the diff needs it to be
+        Collections.sort(programList);
+
+        if (horizonMillis <= bulkHorizonMillis) {
+            pipeline.diff(channel, programList, windowStartMillis);
+            return;
+        }
+
+        pipeline.fetch(channel, new ProgramSyncPipeline.Fetcher() {
             @Override
-            protected void onPostExecute(Boolean completed) {
-                mPendingTasks.remove(this);
-                countDownLatch.countDown();
+            public ClientFuture<ProgramList> fetch(Channel channel) {
+                return fetchChannelPrograms(account, client, channel, bulkHorizonMillis, horizonMillis, retryPolicy)
+                        .transform(new ClientFuture.Function<ProgramList, ProgramList>() {
+                            @Override
+                            public ProgramList apply(ProgramList remainder) {
+                                programList.addAll(remainder);
+                                return programList;
+                            }
+                        });
             }
+        }, windowStartMillis);
+    }
 
-            @Override
-            protected void onCancelled() {
-                mPendingTasks.remove(this);
-                countDownLatch.countDown();
+    /**
+     * Fetches a page of events into the consumer, retrying as the policy allows.
+     *
+     * @return the page, or null if it couldn't be fetched, or the sync was cancelled.
+     */
+    private EventStreamRequest.Result fetchEventPage(TVHClient client, ProgramListConsumer consumer, int start, long windowStartMillis, long horizonMillis, RetryPolicy retryPolicy) {
+        for (int attempt = 0; ; attempt++) {
+            if (isCancelled()) {
+                Log.d(TAG, "Sync cancelled");
+                return null;
             }
-        };
 
-        mPendingTasks.add(syncProgramsTask.executeOnExecutor(sExecutor, eventList));
+            // Only merged in once the page is complete, so a failed attempt leaves nothing behind
+            ProgramListConsumer pageConsumer = consumer.newPage();
+            Throwable error;
+
+            try {
+                EventStreamRequest.Result page = client.streamEventGridPage(
+                        pageConsumer, start, TVHClient.BULK_EVENT_PAGE_SIZE, windowStartMillis / 1000, horizonMillis / 1000);
+                consumer.addAll(pageConsumer);
+                return page;
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while fetching event list from server");
+                return null;
+            } catch (ExecutionException e) {
+                error = e.getCause();
+            } catch (TimeoutException e) {
+                error = e;
+            }
 
-        return true;
+            if (!retryPolicy.shouldRetry(error, attempt)) {
+                Log.w(TAG, "Failed to fetch event list from server: " + error.toString());
+                return null;
+            }
+
+            long delayMillis = retryPolicy.getDelayMillis(attempt);
+
+            Log.d(TAG, "Failed to fetch event list from server, retrying in " + delayMillis + "ms: " + error.toString());
+
+            if (!sleepUnlessCancelled(delayMillis)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return false if the sync was cancelled, or the thread interrupted, while sleeping.
+     */
+    private boolean sleepUnlessCancelled(long millis) {
+        final long deadlineMillis = SystemClock.elapsedRealtime() + millis;
+        long remainingMillis = millis;
+
+        while (remainingMillis > 0) {
+            if (isCancelled()) {
+                return false;
+            }
+
+            try {
+                Thread.sleep(Math.min(remainingMillis, CANCELLATION_POLL_MS));
+            } catch (InterruptedException e) {
+                return false;
+            }
+
+            remainingMillis = deadlineMillis - SystemClock.elapsedRealtime();
+        }
+
+        return !isCancelled();
+    }
+
+    private void updateWatermark(EpgWatermarks watermarks, Channel channel, ProgramList programList, long windowStartMillis, long syncStartMillis) {
+        final String channelUuid = channel.getInternalProviderData().getUuid();
+
+        long maxStopMillis = 0;
+        long lastFullSyncMillis = syncStartMillis;
+
+        if (windowStartMillis > 0) {
+            // An incremental sync only sees events after the window start, so carry on from the
+            // previous watermark.
+            EpgWatermarks.Watermark previous = watermarks.get(channelUuid);
+
+            lastFullSyncMillis = 0;
+
+            if (previous != null) {
+                maxStopMillis = previous.maxStopMillis;
+                lastFullSyncMillis = previous.lastFullSyncMillis;
+            }
+        }
+
+        for (Program program : programList) {
+            maxStopMillis = Math.max(maxStopMillis, program.getEndTimeUtcMillis());
+        }
+
+        watermarks.put(channelUuid, new EpgWatermarks.Watermark(syncStartMillis, lastFullSyncMillis, maxStopMillis));
+    }
+
+    private static class Stage {
+        public final int number;
+        public final int count;
+        public final long maxHorizonMillis;
+
+        public Stage(int number, int count, long maxHorizonMillis) {
+            this.number = number;
+            this.count = count;
+            this.maxHorizonMillis = maxHorizonMillis;
+        }
+
+        public boolean isLast() {
+            return number == count;
+        }
+    }
+
+    /**
+     * Broadcasts how far through its channels a program sync is, at most every
+     * {@link #PROGRESS_INTERVAL_MS}.
+     */
+    private class ProgressReporter {
+        private final Account mAccount;
+        private final int mStage;
+        private final int mStageCount;
+        private final int mChannelsTotal;
+        private final AtomicInteger mChannelsDone = new AtomicInteger();
+        private final AtomicLong mLastReportMillis = new AtomicLong();
+
+        public ProgressReporter(Account account, Stage stage, int channelsTotal) {
+            mAccount = account;
+            mStage = stage == null ? 1 : stage.number;
+            mStageCount = stage == null ? 1 : stage.count;
+            mChannelsTotal = channelsTotal;
+        }
+
+        public void onChannelDone() {
+            mChannelsDone.incrementAndGet();
+
+            long nowMillis = SystemClock.elapsedRealtime();
+            long lastReportMillis = mLastReportMillis.get();
+
+            if (nowMillis - lastReportMillis >= PROGRESS_INTERVAL_MS
+                    && mLastReportMillis.compareAndSet(lastReportMillis, nowMillis)) {
+                report(false);
+            }
+        }
+
+        public void report(boolean stageComplete) {
+            SyncUtils.broadcastProgress(mContext, mAccount, mStage, mStageCount, stageComplete,
+                    mChannelsDone.get(), mChannelsTotal);
+        }
+    }
+
+    /**
+     * Converts streamed events straight into Programs, grouped into a ProgramList per channel,
+     * so the raw events can be discarded as soon as they're parsed.
+     */
+    private static class ProgramListConsumer implements EventStreamRequest.Consumer {
+        private final Account mAccount;
+        private final long mWindowStartMillis;
+        private final Map<String, Channel> mChannels;
+        private final Map<String, ProgramList> mProgramLists = new HashMap<>();
+
+        // The channel number of each channel with events so far, and of the last event seen.
+        // Only used when events come sorted by channel number.
+        private final Map<String, String> mChannelNumbers = new HashMap<>();
+        private String mLastChannelNumber;
+        private boolean mHasEvents = false;
+        private final Set<String> mTaken = new HashSet<>();
+
+        public ProgramListConsumer(Account account, long windowStartMillis) {
+            this(account, windowStartMillis, new HashMap<String, Channel>());
+        }
+
+        private ProgramListConsumer(Account account, long windowStartMillis, Map<String, Channel> channels) {
+            mAccount = account;
+            mWindowStartMillis = windowStartMillis;
+            mChannels = channels;
+        }
+
+        /**
+         * @return an empty consumer for the same channels, for a single page of events, which
+         *         can be added to this one with {@link #addAll(ProgramListConsumer)} once the
+         *         page is complete.
+         */
+        public ProgramListConsumer newPage() {
+            return new ProgramListConsumer(mAccount, mWindowStartMillis, mChannels);
+        }
+
+        public void addAll(ProgramListConsumer page) {
+            for (Map.Entry<String, ProgramList> entry : page.mProgramLists.entrySet()) {
+                getOrCreateProgramList(entry.getKey()).addAll(entry.getValue());
+            }
+
+            mChannelNumbers.putAll(page.mChannelNumbers);
+
+            if (page.mHasEvents) {
+                mLastChannelNumber = page.mLastChannelNumber;
+                mHasEvents = true;
+            }
+        }
+
+        /**
+         * Events sorted by channel number come in a block per number, so every channel whose
+         * block has been left behind has all its events.
+         *
+         * @return the channels, not taken before, whose events are all in.
+         */
+        public List<Channel> takePassedChannels() {
+            List<Channel> channels = new ArrayList<>();
+
+            for (Map.Entry<String, String> entry : mChannelNumbers.entrySet()) {
+                if (!TextUtils.equals(entry.getValue(), mLastChannelNumber) && mTaken.add(entry.getKey())) {
+                    channels.add(mChannels.get(entry.getKey()));
+                }
+            }
+
+            return channels;
+        }
+
+        /**
+         * @return every channel not taken before.
+         */
+        public List<Channel> takeRemainingChannels() {
+            List<Channel> channels = new ArrayList<>();
+
+            for (Map.Entry<String, Channel> entry : mChannels.entrySet()) {
+                if (mTaken.add(entry.getKey())) {
+                    channels.add(entry.getValue());
+                }
+            }
+
+            return channels;
+        }
+
+        public void addChannel(Channel channel) {
+            String channelUuid = channel.getInternalProviderData().getUuid();
+
+            mChannels.put(channelUuid, channel);
+            mProgramLists.put(channelUuid, new ProgramList());
+        }
+
+        public ProgramList getProgramList(Channel channel) {
+            return mProgramLists.get(channel.getInternalProviderData().getUuid());
+        }
+
+        /**
+         * @return the channel's programs, which the consumer no longer holds on to.
+         */
+        public ProgramList removeProgramList(Channel channel) {
+            ProgramList programList = mProgramLists.remove(channel.getInternalProviderData().getUuid());
+
+            return programList != null ? programList : new ProgramList();
+        }
+
+        @Override
+        public void onEvent(TVHClient.Event event) {
+            Channel channel = mChannels.get(event.channelUuid);
+
+            mLastChannelNumber = event.channelNumber;
+            mHasEvents = true;
+
+            if (channel != null) {
+                mChannelNumbers.put(event.channelUuid, event.channelNumber);
+            }
+
+            // Events for channels we don't know about (e.g. disabled channels), or outside the
+            // sync window, are skipped
+            if (channel != null && event.stop * 1000 > mWindowStartMillis) {
+                getOrCreateProgramList(event.channelUuid).add(
+                        Program.fromClientEvent(event, channel.getId(), mAccount));
+            }
+        }
+
+        private ProgramList getOrCreateProgramList(String channelUuid) {
+            ProgramList programList = mProgramLists.get(channelUuid);
+
+            if (programList == null) {
+                programList = new ProgramList();
+                mProgramLists.put(channelUuid, programList);
+            }
+
+            return programList;
+        }
     }
 }
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import ie.macinnes.tvheadend.Constants;
+
+/**
+ * Persists, per account, the progress of a program sync, i.e. its window and which channels it
+ * has finished. A sync which is cancelled or fails part way through can then be resumed by the
+ * next one, rather than started over.
+ */
+public class SyncProgress {
+    // Past this, the server's EPG has moved on enough that it's not worth resuming
+    private static final long MAX_RESUME_AGE_MS = TimeUnit.HOURS.toMillis(6);
+
+    private static final String KEY_STARTED = "started";
+    private static final String KEY_WINDOW_START = "window-start";
+    private static final String KEY_DONE_PREFIX = "done/";
+
+    // Channels marked done are written out in batches of this many, rather than one by one
+    private static final int DONE_FLUSH_BATCH = 50;
+
+    private final SharedPreferences mSharedPreferences;
+    private final String mAccountName;
+
+    private final Set<String> mPendingDone = new HashSet<>();
+
+    public SyncProgress(Context context, Account account) {
+        mSharedPreferences = context.getSharedPreferences(
+                Constants.PREFERENCE_SYNC_PROGRESS, Context.MODE_PRIVATE);
+        mAccountName = account.name;
+    }
+
+    /**
+     * @return whether there's an unfinished sync recent enough to resume.
+     */
+    public boolean isResumable(long nowMillis) {
+        long startedMillis = getStartedMillis();
+
+        return startedMillis > 0
+                && startedMillis <= nowMillis
+                && nowMillis - startedMillis < MAX_RESUME_AGE_MS;
+    }
+
+    public long getStartedMillis() {
+        return mSharedPreferences.getLong(buildKey(KEY_STARTED), 0);
+    }
+
+    public long getWindowStartMillis() {
+        return mSharedPreferences.getLong(buildKey(KEY_WINDOW_START), 0);
+    }
+
+    /**
+     * Starts tracking a new sync, forgetting any unfinished one.
+     */
+    public void begin(long startedMillis, long windowStartMillis) {
+        synchronized (mPendingDone) {
+            mPendingDone.clear();
+        }
+
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        removeAll(editor);
+
+        editor.putLong(buildKey(KEY_STARTED), startedMillis)
+                .putLong(buildKey(KEY_WINDOW_START), windowStartMillis)
+                .apply();
+    }
+
+    public boolean isChannelDone(String channelUuid) {
+        synchronized (mPendingDone) {
+            if (mPendingDone.contains(channelUuid)) {
+                return true;
+            }
+        }
+
+        return mSharedPreferences.getBoolean(buildKey(KEY_DONE_PREFIX + channelUuid), false);
+    }
+
+    /**
+     * Marks the channel done. Only written out once a batch of channels is done, or on
+     * {@link #flush()}.
+     */
+    public void markChannelDone(String channelUuid) {
+        synchronized (mPendingDone) {
+            mPendingDone.add(channelUuid);
+
+            if (mPendingDone.size() >= DONE_FLUSH_BATCH) {
+                flushLocked();
+            }
+        }
+    }
+
+    /**
+     * Writes out the channels marked done since the last write, must be called once the sync
+     * has finished with them, whether it completed or not.
+     */
+    public void flush() {
+        synchronized (mPendingDone) {
+            flushLocked();
+        }
+    }
+
+    private void flushLocked() {
+        if (mPendingDone.isEmpty()) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        for (String channelUuid : mPendingDone) {
+            editor.putBoolean(buildKey(KEY_DONE_PREFIX + channelUuid), true);
+        }
+
+        editor.apply();
+        mPendingDone.clear();
+    }
+
+    /**
+     * Forgets the sync, once it has completed.
+     */
+    public void finish() {
+        clear();
+    }
+
+    /**
+     * Forgets any sync of the account's, finished or not.
+     */
+    public void clear() {
+        synchronized (mPendingDone) {
+            mPendingDone.clear();
+        }
+
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+
+        removeAll(editor);
+
+        editor.apply();
+    }
+
+    private void removeAll(SharedPreferences.Editor editor) {
+        String prefix = mAccountName + "/";
+
+        for (Map.Entry<String, ?> entry : mSharedPreferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                editor.remove(entry.getKey());
+            }
+        }
+    }
+
+    private String buildKey(String name) {
+        return mAccountName + "/" + name;
+    }
+}
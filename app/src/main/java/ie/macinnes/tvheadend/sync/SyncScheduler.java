@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package ie.macinnes.tvheadend.sync;
+
+import android.os.CancellationSignal;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs sync tasks on a fixed number of threads, lowest priority value first.
+ *
+ * At most {@code capacity} tasks may be queued or running at once, {@link #submit(Task)} blocks
+ * once that's reached. Cancellation is cooperative, via each task's CancellationSignal.
+ */
+public class SyncScheduler {
+    private static final String TAG = SyncScheduler.class.getName();
+
+    private static final int KEEP_ALIVE_TIME = 1;
+
+    private final String mName;
+    private final int mConcurrency;
+    private final int mCapacity;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Semaphore mSlots;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final Object mMetricsLock = new Object();
+    private long mCompleted = 0;
+    private long mCancelled = 0;
+    private long mTotalWaitMillis = 0;
+    private long mMaxWaitMillis = 0;
+    private long mTotalRunMillis = 0;
+    private long mMaxRunMillis = 0;
+
+    public static abstract class Task implements Runnable, Comparable<Task> {
+        private final int mPriority;
+        private final CancellationSignal mCancellationSignal;
+
+        private SyncScheduler mScheduler;
+        private long mSequence;
+        private long mSubmittedMillis;
+
+        /**
+         * @param priority Lower values run first
+         * @param cancellationSignal Signal checked before, and expected to be checked during, the
+         *                           task. May be null if the task can't be cancelled.
+         */
+        protected Task(int priority, CancellationSignal cancellationSignal) {
+            mPriority = priority;
+            mCancellationSignal = cancellationSignal;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public boolean isCancelled() {
+            return mCancellationSignal != null && mCancellationSignal.isCanceled();
+        }
+
+        /**
+         * Does the work, on one of the scheduler's threads. Long running tasks should check
+         * {@link #isCancelled()} as they go.
+         */
+        protected abstract void execute();
+
+        /**
+         * Called instead of {@link #execute()} if the task was cancelled before it started.
+         */
+        protected void onCancelled() {
+        }
+
+        @Override
+        public final void run() {
+            final long startedMillis = SystemClock.elapsedRealtime();
+            boolean cancelled = isCancelled();
+
+            try {
+                if (cancelled) {
+                    onCancelled();
+                } else {
+                    execute();
+                }
+            } finally {
+                mScheduler.onTaskFinished(this, startedMillis, cancelled);
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+
+            // Same priority, first in first out
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    public SyncScheduler(final String name, int concurrency, int capacity) {
+        mName = name;
+        mConcurrency = concurrency;
+        mCapacity = capacity;
+
+        mSlots = new Semaphore(capacity);
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            public Thread newThread(@NonNull Runnable r) {
+                return new Thread(r, name + " #" + mCount.getAndIncrement());
+            }
+        };
+
+        // The queue is only bounded by mSlots, so core and max pool size must match for the
+        // pool to actually run tasks in parallel.
+        mExecutor = new ThreadPoolExecutor(concurrency, concurrency, KEEP_ALIVE_TIME,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task, blocking while the scheduler is at capacity.
+     */
+    public void submit(Task task) throws InterruptedException {
+        mSlots.acquire();
+
+        task.mScheduler = this;
+        task.mSequence = mSequence.getAndIncrement();
+        task.mSubmittedMillis = SystemClock.elapsedRealtime();
+
+        // Threads the pool has to create hand their first task straight to the new thread, which
+        // would skip the priority queue. With every thread already running, all tasks go through
+        // it.
+        mExecutor.prestartAllCoreThreads();
+        mExecutor.execute(task);
+    }
+
+    private void onTaskFinished(Task task, long startedMillis, boolean cancelled) {
+        mSlots.release();
+
+        final long finishedMillis = SystemClock.elapsedRealtime();
+        final long waitMillis = startedMillis - task.mSubmittedMillis;
+        final long runMillis = finishedMillis - startedMillis;
+
+        synchronized (mMetricsLock) {
+            if (cancelled) {
+                mCancelled++;
+                return;
+            }
+
+            mCompleted++;
+            mTotalWaitMillis += waitMillis;
+            mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+            mTotalRunMillis += runMillis;
+            mMaxRunMillis = Math.max(mMaxRunMillis, runMillis);
+        }
+    }
+
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    public long getAverageWaitMillis() {
+        synchronized (mMetricsLock) {
+            return mCompleted == 0 ? 0 : mTotalWaitMillis / mCompleted;
+        }
+    }
+
+    public long getAverageRunMillis() {
+        synchronized (mMetricsLock) {
+            return mCompleted == 0 ? 0 : mTotalRunMillis / mCompleted;
+        }
+    }
+
+    public void logMetrics() {
+        synchronized (mMetricsLock) {
+            Log.d(TAG, mName + ": concurrency=" + mConcurrency + ", capacity=" + mCapacity
+                    + ", queued=" + getQueueDepth() + ", active=" + getActiveCount()
+                    + ", completed=" + mCompleted + ", cancelled=" + mCancelled
+                    + ", avgWaitMs=" + (mCompleted == 0 ? 0 : mTotalWaitMillis / mCompleted)
+                    + ", maxWaitMs=" + mMaxWaitMillis
+                    + ", avgRunMs=" + (mCompleted == 0 ? 0 : mTotalRunMillis / mCompleted)
+                    + ", maxRunMs=" + mMaxRunMillis);
+        }
+    }
+}
@@ -17,6 +17,8 @@ package ie.macinnes.tvheadend.sync;
 
 import android.accounts.Account;
 import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
 import android.os.Bundle;
 import android.util.Log;
 
@@ -48,7 +50,7 @@ public class SyncUtils {
         ContentResolver.removePeriodicSync(account, Constants.CONTENT_AUTHORITY, bundle);
     }
 
-    public static void requestSync(Account account, boolean quickSync) {
+    public static void requestSync(Account account, boolean quickSync, boolean fullSync) {
         Log.d(TAG, "Requesting immediate sync for account: " + account.toString());
         ContentResolver.setIsSyncable(account, Constants.CONTENT_AUTHORITY, 1);
 
@@ -57,11 +59,38 @@ public class SyncUtils {
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
         bundle.putBoolean(Constants.SYNC_EXTRAS_QUICK, quickSync);
+        bundle.putBoolean(Constants.SYNC_EXTRAS_FULL, fullSync);
 
         ContentResolver.requestSync(account, Constants.CONTENT_AUTHORITY, bundle);
     }
 
+    public static void requestSync(Account account, boolean quickSync) {
+        requestSync(account, quickSync, false);
+    }
+
     public static void requestSync(Account account) {
         requestSync(account, false);
     }
+
+    public static void requestFullSync(Account account) {
+        requestSync(account, false, true);
+    }
+
+    /**
+     * Lets the setup wizard know how a sync is getting on. Syncs run in their own process, so
+     * this is a regular broadcast, limited to our own package and permission.
+     */
+    public static void broadcastProgress(Context context, Account account, int stage, int stageCount, boolean stageComplete, int channelsDone, int channelsTotal) {
+        Intent intent = new Intent(Constants.ACTION_SYNC_PROGRESS);
+        intent.setPackage(context.getPackageName());
+
+        intent.putExtra(Constants.EXTRA_ACCOUNT_NAME, account.name);
+        intent.putExtra(Constants.EXTRA_SYNC_STAGE, stage);
+        intent.putExtra(Constants.EXTRA_SYNC_STAGE_COUNT, stageCount);
+        intent.putExtra(Constants.EXTRA_SYNC_STAGE_COMPLETE, stageComplete);
+        intent.putExtra(Constants.EXTRA_SYNC_CHANNELS_DONE, channelsDone);
+        intent.putExtra(Constants.EXTRA_SYNC_CHANNELS_TOTAL, channelsTotal);
+
+        context.sendBroadcast(intent, Constants.PERMISSION_SYNC_PROGRESS);
+    }
 }
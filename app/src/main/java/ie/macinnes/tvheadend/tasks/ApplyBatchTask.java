@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package ie.macinnes.tvheadend.tasks;
+
+import android.content.ContentProviderOperation;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.CancellationSignal;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ie.macinnes.tvheadend.Constants;
+import ie.macinnes.tvheadend.sync.SyncScheduler;
+
+/**
+ * Applies a batch of operations. If the batch turns out to be too large for a single Binder
+ * transaction, it's split in two and each half retried. The operations must not use back
+ * references, as they may end up in different batches.
+ */
+public class ApplyBatchTask extends SyncScheduler.Task {
+    public static final String TAG = ApplyBatchTask.class.getSimpleName();
+
+    private static final Object sMetricsLock = new Object();
+    private static long sBatches = 0;
+    private static long sOperations = 0;
+    private static int sMaxOperations = 0;
+    private static long sEstimatedBytes = 0;
+    private static int sMaxEstimatedBytes = 0;
+    private static long sTotalFlushMillis = 0;
+    private static long sMaxFlushMillis = 0;
+    private static long sSplits = 0;
+
+    private final Context mContext;
+    private final ArrayList<ContentProviderOperation> mOps;
+    private final int mEstimatedBytes;
+
+    /**
+     * @param estimatedBytes The batch's estimated parcelled size, for metrics only
+     */
+    public ApplyBatchTask(Context context, ArrayList<ContentProviderOperation> ops, int estimatedBytes, int priority, CancellationSignal cancellationSignal) {
+        super(priority, cancellationSignal);
+
+        mContext = context;
+        mOps = ops;
+        mEstimatedBytes = estimatedBytes;
+    }
+
+    @Override
+    protected void execute() {
+        boolean completed = applyBatch(mOps, mEstimatedBytes);
+
+        onPostExecute(completed);
+    }
+
+    private boolean applyBatch(List<ContentProviderOperation> ops, int estimatedBytes) {
+        final long startedMillis = SystemClock.elapsedRealtime();
+
+        try {
+            mContext.getContentResolver().applyBatch(Constants.CONTENT_AUTHORITY, new ArrayList<>(ops));
+        } catch (TransactionTooLargeException e) {
+            if (ops.size() == 1) {
+                Log.e(TAG, "Failed to apply operation, too large for a single transaction.", e);
+                return false;
+            }
+
+            Log.w(TAG, "Batch of " + ops.size() + " operations (~" + estimatedBytes + " bytes) too large, splitting");
+
+            synchronized (sMetricsLock) {
+                sSplits++;
+            }
+
+            int half = ops.size() / 2;
+
+            return applyBatch(ops.subList(0, half), estimatedBytes / 2)
+                    && applyBatch(ops.subList(half, ops.size()), estimatedBytes - estimatedBytes / 2);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e(TAG, "Failed to apply batch of " + ops.size() + " operations.", e);
+            return false;
+        }
+
+        recordBatch(ops.size(), estimatedBytes, SystemClock.elapsedRealtime() - startedMillis);
+
+        return true;
+    }
+
+    /**
+     * Called once the batch has been applied, or has failed to apply.
+     */
+    protected void onPostExecute(boolean completed) {
+    }
+
+    private static void recordBatch(int operations, int estimatedBytes, long flushMillis) {
+        synchronized (sMetricsLock) {
+            sBatches++;
+            sOperations += operations;
+            sMaxOperations = Math.max(sMaxOperations, operations);
+            sEstimatedBytes += estimatedBytes;
+            sMaxEstimatedBytes = Math.max(sMaxEstimatedBytes, estimatedBytes);
+            sTotalFlushMillis += flushMillis;
+            sMaxFlushMillis = Math.max(sMaxFlushMillis, flushMillis);
+        }
+    }
+
+    public static void logMetrics() {
+        synchronized (sMetricsLock) {
+            Log.d(TAG, "Batches: count=" + sBatches + ", splits=" + sSplits
+                    + ", avgOps=" + (sBatches == 0 ? 0 : sOperations / sBatches)
+                    + ", maxOps=" + sMaxOperations
+                    + ", avgBytes=" + (sBatches == 0 ? 0 : sEstimatedBytes / sBatches)
+                    + ", maxBytes=" + sMaxEstimatedBytes
+                    + ", avgFlushMs=" + (sBatches == 0 ? 0 : sTotalFlushMillis / sBatches)
+                    + ", maxFlushMs=" + sMaxFlushMillis);
+        }
+    }
+}
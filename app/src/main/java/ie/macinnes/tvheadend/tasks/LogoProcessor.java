@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2016 Kiall Mac Innes <kiall@macinnes.ie>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package ie.macinnes.tvheadend.tasks;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Normalises channel logos for TvProvider. Logos which already fit the guide, in a format any app
+ * can read, are passed through as is. The rest are decoded, as small and as compactly as will
+ * still fill the target box, and re-encoded.
+ *
+ * The memory taken by decodes in flight, across every thread, is capped, so a large lineup of
+ * large logos can't run a low RAM device out of memory. Decode buffers are reused where possible,
+ * and count against the same cap while they're pooled.
+ */
+public class LogoProcessor {
+    private static final String TAG = LogoProcessor.class.getSimpleName();
+
+    // The box logos are scaled down to fit, well beyond the size the guide shows them at
+    public static final int MAX_WIDTH_PX = 512;
+    public static final int MAX_HEIGHT_PX = 512;
+
+    // Formats written as is, anything else is converted
+    private static final Set<String> PASSTHROUGH_MIME_TYPES = new HashSet<>(Arrays.asList(
+            "image/png", "image/jpeg", "image/webp"));
+
+    // Total size of the bitmaps being decoded at once
+    private static final int MAX_DECODE_BYTES = 16 * 1024 * 1024;
+
+    // Total size of the decode buffers kept around for reuse
+    private static final int MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+    private static final int JPEG_QUALITY = 90;
+
+    private static final Semaphore sDecodeBudget = new Semaphore(MAX_DECODE_BYTES);
+    private static final List<PooledBitmap> sBitmapPool = new ArrayList<>();
+    private static int sPooledBytes = 0;
+
+    public enum Outcome {
+        PASSED_THROUGH,
+        CONVERTED,
+        FAILED
+    }
+
+    /**
+     * A decode buffer, and the share of the decode budget it holds.
+     */
+    private static class PooledBitmap {
+        private final Bitmap mBitmap;
+        private final int mPermits;
+
+        public PooledBitmap(Bitmap bitmap, int permits) {
+            mBitmap = bitmap;
+            mPermits = permits;
+        }
+    }
+
+    /**
+     * Writes the logo to the content URI, converting it first if needed. Nothing is written if the
+     * logo can't be decoded.
+     */
+    public static Outcome process(byte[] data, ContentResolver resolver, Uri contentUri) throws IOException, InterruptedException {
+        // Only the header is read, to see if the image needs converting
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+
+        if (bounds.outMimeType == null || bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            Log.w(TAG, "Not an image we can decode");
+            return Outcome.FAILED;
+        }
+
+        if (PASSTHROUGH_MIME_TYPES.contains(bounds.outMimeType)
+                && bounds.outWidth <= MAX_WIDTH_PX && bounds.outHeight <= MAX_HEIGHT_PX) {
+            try (OutputStream os = openOutputStream(resolver, contentUri)) {
+                os.write(data);
+            }
+
+            return Outcome.PASSED_THROUGH;
+        }
+
+        // JPEGs have no alpha, so can be decoded at half the size
+        boolean opaque = "image/jpeg".equals(bounds.outMimeType);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inSampleSize = computeSampleSize(bounds.outWidth, bounds.outHeight);
+
+        int width = divideRoundingUp(bounds.outWidth, options.inSampleSize);
+        int height = divideRoundingUp(bounds.outHeight, options.inSampleSize);
+        int decodeBytes = width * height * (opaque ? 2 : 4);
+
+        // A pooled buffer brings its share of the budget with it
+        PooledBitmap pooled = acquire(options.inPreferredConfig, decodeBytes);
+        int permits;
+
+        if (pooled != null) {
+            options.inBitmap = pooled.mBitmap;
+            permits = pooled.mPermits;
+        } else {
+            // A logo larger than the whole budget may still be decoded, on its own
+            permits = Math.min(decodeBytes, MAX_DECODE_BYTES);
+            acquireBudget(permits);
+        }
+
+        Bitmap decoded = null;
+        Bitmap scaled = null;
+
+        try {
+            decoded = decode(data, options);
+
+            if (decoded == null) {
+                Log.w(TAG, "Failed to decode " + bounds.outMimeType + " image");
+                return Outcome.FAILED;
+            }
+
+            scaled = scaleToFit(decoded);
+
+            try (OutputStream os = openOutputStream(resolver, contentUri)) {
+                if (opaque) {
+                    scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, os);
+                } else {
+                    scaled.compress(Bitmap.CompressFormat.PNG, 100, os);
+                }
+            }
+
+            return Outcome.CONVERTED;
+        } finally {
+            if (scaled != null && scaled != decoded) {
+                scaled.recycle();
+            }
+
+            // Either the bitmap decoded into, or the buffer a failed decode left unused
+            Bitmap buffer = decoded != null ? decoded : options.inBitmap;
+
+            if (buffer != null) {
+                release(buffer, permits);
+            } else {
+                sDecodeBudget.release(permits);
+            }
+        }
+    }
+
+    /**
+     * Frees every pooled decode buffer, e.g. once a logo sync is done with them.
+     */
+    public static void trim() {
+        List<PooledBitmap> pooled;
+
+        synchronized (sBitmapPool) {
+            pooled = new ArrayList<>(sBitmapPool);
+            sBitmapPool.clear();
+            sPooledBytes = 0;
+        }
+
+        for (PooledBitmap pooledBitmap : pooled) {
+            pooledBitmap.mBitmap.recycle();
+            sDecodeBudget.release(pooledBitmap.mPermits);
+        }
+    }
+
+    private static void acquireBudget(int permits) throws InterruptedException {
+        if (!sDecodeBudget.tryAcquire(permits)) {
+            // Idle buffers mustn't hold up a decode
+            trim();
+            sDecodeBudget.acquire(permits);
+        }
+    }
+
+    private static OutputStream openOutputStream(ContentResolver resolver, Uri contentUri) throws IOException {
+        OutputStream os = resolver.openOutputStream(contentUri);
+
+        if (os == null) {
+            throw new IOException("Failed to open " + contentUri + " for writing");
+        }
+
+        return os;
+    }
+
+    /**
+     * @return the largest power of two the image can be subsampled by while still filling the
+     *         target box.
+     */
+    private static int computeSampleSize(int width, int height) {
+        int sampleSize = 1;
+
+        while (width / (sampleSize * 2) >= MAX_WIDTH_PX || height / (sampleSize * 2) >= MAX_HEIGHT_PX) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+
+    private static int divideRoundingUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static Bitmap decode(byte[] data, BitmapFactory.Options options) {
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // The decoder wouldn't reuse the buffer after all, e.g. a format it can't decode into
+            // an existing bitmap. Its share of the budget goes to the new bitmap instead.
+            if (options.inBitmap == null) {
+                throw e;
+            }
+
+            options.inBitmap.recycle();
+            options.inBitmap = null;
+
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    private static Bitmap scaleToFit(Bitmap bitmap) {
+        float scale = Math.min(
+                (float) MAX_WIDTH_PX / bitmap.getWidth(),
+                (float) MAX_HEIGHT_PX / bitmap.getHeight());
+
+        if (scale >= 1) {
+            return bitmap;
+        }
+
+        return Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+    }
+
+    /**
+     * @return a pooled bitmap large enough to decode into, or null if there's none.
+     */
+    private static PooledBitmap acquire(Bitmap.Config config, int bytes) {
+        synchronized (sBitmapPool) {
+            Iterator<PooledBitmap> iterator = sBitmapPool.iterator();
+
+            while (iterator.hasNext()) {
+                PooledBitmap pooled = iterator.next();
+
+                if (pooled.mBitmap.getConfig() == config && pooled.mBitmap.getAllocationByteCount() >= bytes) {
+                    iterator.remove();
+                    sPooledBytes -= pooled.mBitmap.getAllocationByteCount();
+                    return pooled;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a bitmap to the pool, still holding its share of the decode budget, if there's
+     * room. Otherwise frees it, and its share.
+     */
+    private static void release(Bitmap bitmap, int permits) {
+        synchronized (sBitmapPool) {
+            int bytes = bitmap.getAllocationByteCount();
+
+            if (bitmap.isMutable() && sPooledBytes + bytes <= MAX_POOLED_BYTES) {
+                sBitmapPool.add(new PooledBitmap(bitmap, permits));
+                sPooledBytes += bytes;
+                return;
+            }
+        }
+
+        bitmap.recycle();
+        sDecodeBudget.release(permits);
+    }
+}
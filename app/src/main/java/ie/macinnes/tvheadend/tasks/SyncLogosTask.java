@@ -18,70 +18,245 @@ package ie.macinnes.tvheadend.tasks;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import ie.macinnes.tvheadend.client.ClientFuture;
+import ie.macinnes.tvheadend.client.ConditionalRequest;
 import ie.macinnes.tvheadend.client.TVHClient;
+import ie.macinnes.tvheadend.sync.LogoIndex;
+import ie.macinnes.tvheadend.sync.SyncScheduler;
 
-public class SyncLogosTask extends AsyncTask<Map<Uri, String>, Void, Void> {
+/**
+ * Syncs channel logos, several at a time. Each logo is written to TvProvider by the
+ * {@link LogoProcessor}, as it came from the server where possible. Logos found unchanged in the
+ * {@link LogoIndex} aren't written at all.
+ */
+public class SyncLogosTask extends SyncScheduler.Task {
     public static final String TAG = SyncLogosTask.class.getSimpleName();
 
+    // Logos fetched, or waiting to be written, at once. The server's own concurrency limit
+    // applies on top.
+    private static final int MAX_IN_FLIGHT = 16;
+
+    private static final long CANCELLATION_POLL_MS = 500;
+
+    // A logo whose URL hasn't changed isn't even checked again for this long
+    private static final long MIN_RECHECK_MS = TimeUnit.HOURS.toMillis(24);
+
+    private static final ExecutorService sWriteExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    return new Thread(r, "LogoWrite #" + mCount.getAndIncrement());
+                }
+            });
+
     private final Context mContext;
     private final TVHClient mClient;
+    private final LogoIndex mLogoIndex;
+    private final LogoIndex.Batch mLogoIndexBatch;
     private final ContentResolver mContentResolver;
+    private final Map<Uri, String> mLogos;
+    private final Listener mListener;
+
+    private final Semaphore mInFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final Set<ClientFuture<?>> mOutstanding =
+            Collections.newSetFromMap(new ConcurrentHashMap<ClientFuture<?>, Boolean>());
+
+    private final AtomicInteger mWritten = new AtomicInteger();
+    private final AtomicInteger mPassedThrough = new AtomicInteger();
+    private final AtomicInteger mUnchanged = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+
+    public interface Listener {
+        /**
+         * Called once every logo has been synced, or found unchanged. Not called if any failed,
+         * or the task was cancelled. Called on the task's thread.
+         */
+        void onLogosSynced();
+    }
+
+    /**
+     * @param logos Logo content URIs mapped to their source URLs, synced in the map's iteration
+     *              order, so most important first
+     * @param listener May be null
+     */
+    public SyncLogosTask(Context context, TVHClient client, LogoIndex logoIndex, Map<Uri, String> logos, int priority, CancellationSignal cancellationSignal, Listener listener) {
+        super(priority, cancellationSignal);
 
-    public SyncLogosTask(Context context) {
         mContext = context;
 
-        mClient = TVHClient.getInstance(context);
+        mClient = client;
+        mLogoIndex = logoIndex;
+        mLogoIndexBatch = logoIndex.edit();
         mContentResolver = context.getContentResolver();
+        mLogos = logos;
+        mListener = listener;
     }
 
     @Override
-    public Void doInBackground(Map<Uri, String>... logosList) {
-        for (Map<Uri, String> logos : logosList) {
-            for (Uri uri : logos.keySet()) {
-                insertUrl(mContext, uri, logos.get(uri));
+    protected void execute() {
+        final CountDownLatch remaining = new CountDownLatch(mLogos.size());
+        final long nowMillis = System.currentTimeMillis();
+
+        try {
+            for (Map.Entry<Uri, String> entry : mLogos.entrySet()) {
+                if (isCancelled()) {
+                    Log.d(TAG, "Logo sync cancelled");
+                    return;
+                }
+
+                LogoIndex.Entry indexed = mLogoIndex.get(entry.getKey());
+
+                if (indexed != null && indexed.sourceUrl.equals(entry.getValue())
+                        && nowMillis - indexed.checkedMillis < MIN_RECHECK_MS
+                        && indexed.checkedMillis <= nowMillis) {
+                    mUnchanged.incrementAndGet();
+                    remaining.countDown();
+                    continue;
+                }
+
+                mInFlight.acquire();
+
+                fetch(entry.getKey(), entry.getValue(), indexed, remaining);
             }
+
+            while (!remaining.await(CANCELLATION_POLL_MS, TimeUnit.MILLISECONDS)) {
+                if (isCancelled()) {
+                    Log.d(TAG, "Logo sync cancelled");
+                    return;
+                }
+            }
+
+            // Written before the listener records the pass as done
+            mLogoIndexBatch.commit();
+
+            if (mFailed.get() == 0 && !isCancelled() && mListener != null) {
+                mListener.onLogosSynced();
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted during logo sync: " + e.getLocalizedMessage());
+        } finally {
+            for (ClientFuture<?> future : mOutstanding) {
+                future.cancel(true);
+            }
+
+            // One write for the whole pass, rather than one per logo, or whatever of it was done
+            mLogoIndexBatch.commit();
+
+            // Logos are only synced now and then, no point holding on to decode buffers between
+            // syncs. Any writes still finishing up return theirs to the pool, to be trimmed next
+            // time.
+            LogoProcessor.trim();
+
+            Log.d(TAG, "Logos written: " + mWritten.get() + " (" + mPassedThrough.get() + " as is)"
+                    + ", unchanged: " + mUnchanged.get() + ", failed: " + mFailed.get());
         }
-        return null;
     }
 
-    private void insertUrl(Context context, Uri contentUri, String sourceUrl) {
-        Log.d(TAG, "Inserting logo " + sourceUrl + " to " + contentUri);
+    /**
+     * @param indexed What was last written to the logo URI, or null if nothing was
+     */
+    private void fetch(final Uri contentUri, final String sourceUrl, final LogoIndex.Entry indexed, final CountDownLatch remaining) {
+        Log.d(TAG, "Fetching logo " + sourceUrl + " for " + contentUri);
 
-        Bitmap logo;
+        // The validators are only any use if they're for the same URL
+        final boolean sameUrl = indexed != null && indexed.sourceUrl.equals(sourceUrl);
 
-        try {
-            logo = mClient.getChannelIcon(sourceUrl);
-        } catch (InterruptedException|ExecutionException|TimeoutException e) {
-            Log.d(TAG, "Failed to fetch logo from " + sourceUrl, e);
-            return;
-        }
+        final ClientFuture<ConditionalRequest.Result<byte[]>> future =
+                mClient.getChannelIconBytesAsync(sourceUrl, sameUrl ? indexed.validators : null);
 
-        OutputStream os = null;
+        mOutstanding.add(future);
+
+        future.addCallback(new ClientFuture.Callback<ConditionalRequest.Result<byte[]>>() {
+            @Override
+            public void onSuccess(ConditionalRequest.Result<byte[]> result) {
+                final long checkedMillis = System.currentTimeMillis();
 
-        try {
-            os = mContentResolver.openOutputStream(contentUri);
-            logo.compress(Bitmap.CompressFormat.PNG, 100, os);
-        } catch (IOException ioe) {
-            Log.e(TAG, "Failed to copy " + sourceUrl + "  to " + contentUri, ioe);
-        } finally {
-            if (os != null) {
                 try {
-                    os.close();
-                } catch (IOException e) {
-                    // Ignore...
+                    if (result.notModified) {
+                        Log.d(TAG, "Logo " + sourceUrl + " not modified, skipping");
+                        mUnchanged.incrementAndGet();
+                        mLogoIndexBatch.put(contentUri, new LogoIndex.Entry(
+                                sourceUrl, indexed.digest, result.validators, checkedMillis));
+                        return;
+                    }
+
+                    String digest = LogoIndex.computeDigest(result.value);
+
+                    if (indexed != null && digest != null && digest.equals(indexed.digest)) {
+                        // Same image, whether or not it moved URL
+                        Log.d(TAG, "Logo " + sourceUrl + " unchanged, skipping");
+                        mUnchanged.incrementAndGet();
+                    } else if (!isCancelled() && write(contentUri, sourceUrl, result.value)) {
+                        mWritten.incrementAndGet();
+                    } else {
+                        mFailed.incrementAndGet();
+                        return;
+                    }
+
+                    mLogoIndexBatch.put(contentUri, new LogoIndex.Entry(
+                            sourceUrl, digest, result.validators, checkedMillis));
+                } finally {
+                    done();
                 }
             }
+
+            @Override
+            public void onFailure(Throwable error) {
+                Log.d(TAG, "Failed to fetch logo from " + sourceUrl, error);
+                mFailed.incrementAndGet();
+                done();
+            }
+
+            private void done() {
+                mOutstanding.remove(future);
+                mInFlight.release();
+                remaining.countDown();
+            }
+        }, sWriteExecutor);
+    }
+
+    private boolean write(Uri contentUri, String sourceUrl, byte[] data) {
+        LogoProcessor.Outcome outcome;
+
+        try {
+            outcome = LogoProcessor.process(data, mContentResolver, contentUri);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Failed to copy " + sourceUrl + "  to " + contentUri, ioe);
+            return false;
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while writing logo " + sourceUrl);
+            return false;
+        }
+
+        switch (outcome) {
+            case PASSED_THROUGH:
+                mPassedThrough.incrementAndGet();
+                return true;
+            case CONVERTED:
+                return true;
+            default:
+                Log.w(TAG, "Failed to process logo " + sourceUrl + ", skipping");
+                return false;
         }
     }
 }
@@ -19,90 +19,131 @@ package ie.macinnes.tvheadend.tasks;
 
 import android.accounts.Account;
 import android.content.ContentProviderOperation;
-import android.content.Context;
-import android.content.OperationApplicationException;
+import android.content.ContentValues;
 import android.media.tv.TvContract;
-import android.os.AsyncTask;
-import android.os.RemoteException;
+import android.os.CancellationSignal;
 import android.util.Log;
 
 import java.util.ArrayList;
 
-import ie.macinnes.tvheadend.Constants;
-import ie.macinnes.tvheadend.TvContractUtils;
-import ie.macinnes.tvheadend.client.TVHClient;
 import ie.macinnes.tvheadend.model.Channel;
 import ie.macinnes.tvheadend.model.Program;
 import ie.macinnes.tvheadend.model.ProgramList;
+import ie.macinnes.tvheadend.model.ProgramSnapshot;
+import ie.macinnes.tvheadend.sync.OperationBatcher;
+import ie.macinnes.tvheadend.sync.SyncScheduler;
 
-public class SyncProgramsTask extends AsyncTask<TVHClient.EventList, Void, Boolean> {
+/**
+ * Works out the changes needed to bring a channel's programs in line with the server, and hands
+ * them off in batches to be written by {@link #onBatch(ArrayList, int)}.
+ */
+public abstract class SyncProgramsTask extends SyncScheduler.Task {
     public static final String TAG = SyncProgramsTask.class.getSimpleName();
 
-    private final Context mContext;
     private final Channel mChannel;
     private final Account mAccount;
+    private final ProgramList mProgramList;
+    private final ProgramSnapshot.ChannelPrograms mOldPrograms;
+    private final long mWindowStartMillis;
+    private final int mBatchByteBudget;
 
     private int mAdditions = 0;
     private int mUpdates = 0;
     private int mDeletions = 0;
     private int mNochange = 0;
 
-    protected SyncProgramsTask(Context context, Channel channel, Account account) {
-        mContext = context;
+    /**
+     * @param oldPrograms The channel's existing programs, from a {@link ProgramSnapshot}
+     * @param windowStartMillis Only programs ending after this time are synced, existing programs
+     *                          ending before it are left untouched. Use 0 to sync all programs.
+     * @param batchByteBudget The estimated size at which batches are handed to {@link #onBatch}
+     */
+    protected SyncProgramsTask(Channel channel, Account account, ProgramList programList, ProgramSnapshot.ChannelPrograms oldPrograms, long windowStartMillis, int batchByteBudget, int priority, CancellationSignal cancellationSignal) {
+        super(priority, cancellationSignal);
+
         mChannel = channel;
         mAccount = account;
+        mProgramList = programList;
+        mOldPrograms = oldPrograms;
+        mWindowStartMillis = windowStartMillis;
+        mBatchByteBudget = batchByteBudget;
     }
 
     @Override
-    protected Boolean doInBackground(TVHClient.EventList... eventLists) {
+    protected void execute() {
         Log.d(TAG, "Starting SyncProgramsTask for channel: " + mChannel.toString());
 
-        if (isCancelled()) {
-            return false;
-        }
-
-        for (TVHClient.EventList eventList : eventLists) {
-            if (isCancelled()) {
-                return false;
-            }
-
-            ProgramList programList = ProgramList.fromClientEventList(eventList, mChannel.getId(), mAccount);
+        // Update the programs in the DB
+        boolean completed = updatePrograms(mProgramList);
 
-            // Update the programs in the DB
-            updatePrograms(programList);
+        if (isCancelled()) {
+            onCancelled();
+        } else {
+            onPostExecute(completed);
         }
+    }
 
-        return true;
+    /**
+     * Called with each batch of operations to be applied. The task hands over ownership of the
+     * list, and won't touch it again.
+     *
+     * @param estimatedBytes The batch's estimated size, once parcelled
+     * @return false if the batch could not be accepted, which aborts the task.
+     */
+    protected abstract boolean onBatch(ArrayList<ContentProviderOperation> ops, int estimatedBytes);
+
+    /**
+     * Called once all batches have been handed off, unless the task was cancelled.
+     */
+    protected void onPostExecute(boolean completed) {
     }
 
-    public void updatePrograms(ProgramList newProgramList) {
+    public boolean updatePrograms(ProgramList newProgramList) {
         Log.d(TAG, "Updating programs for channel: " + mChannel.toString() + ". Have " + newProgramList.size() + " events.");
 
-        ProgramList oldProgramList = TvContractUtils.getPrograms(mContext, mChannel);
+        // Indexes into mOldPrograms of the programs being synced. Only programs within the
+        // window are synced, leave the rest alone.
+        int[] oldPrograms = new int[mOldPrograms.size()];
+        int oldProgramsCount = 0;
+
+        for (int i = 0; i < mOldPrograms.size(); i++) {
+            if (mWindowStartMillis == 0 || mOldPrograms.getEndTimeUtcMillis(i) > mWindowStartMillis) {
+                oldPrograms[oldProgramsCount++] = i;
+            }
+        }
 
         int oldProgramsIndex = 0;
         int newProgramsIndex = 0;
-        final int oldProgramsCount = oldProgramList.size();
         final int newProgramsCount = newProgramList.size();
 
         // Compare the new programs with old programs one by one and update/delete the old one
         // or insert new program if there is no matching program in the database.
-        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        OperationBatcher batcher = new OperationBatcher(mBatchByteBudget, new OperationBatcher.Sink() {
+            @Override
+            public boolean onBatch(ArrayList<ContentProviderOperation> ops, int estimatedBytes) {
+                return SyncProgramsTask.this.onBatch(ops, estimatedBytes);
+            }
+        });
 
         while (newProgramsIndex < newProgramsCount) {
             if (isCancelled()) {
                 Log.d(TAG, "Cancelled programs sync for channel: " + mChannel.toString());
-                return;
+                return false;
             }
 
-            Program oldProgram = oldProgramsIndex < oldProgramsCount
-                    ? oldProgramList.get(oldProgramsIndex) : null;
+            int oldProgram = oldProgramsIndex < oldProgramsCount
+                    ? oldPrograms[oldProgramsIndex] : -1;
             Program newProgram = newProgramList.get(newProgramsIndex);
 
+            ContentProviderOperation op = null;
+            ContentValues values = null;
+
             boolean addNewProgram = false;
-            if (oldProgram != null) {
-                if (oldProgram.equals(newProgram)) {
-                    // Exact match. No need to update. Move on to the next programs.
+            if (oldProgram != -1) {
+                if (programEventIdMatches(oldProgram, newProgram)
+                        && programContentMatches(oldProgram, newProgram)) {
+                    // Exact match, going by the content hash. No need to update. Move on to the
+                    // next programs.
                     oldProgramsIndex++;
                     newProgramsIndex++;
 
@@ -111,20 +152,21 @@ public class SyncProgramsTask extends AsyncTask<TVHClient.EventList, Void, Boole
                     // Partial match. Update the old program with the new one.
                     // NOTE: Use 'update' in this case instead of 'insert' and 'delete'. There
                     // could be application specific settings which belong to the old program.
-                    ops.add(ContentProviderOperation.newUpdate(
-                            TvContract.buildProgramUri(oldProgram.getProgramId()))
-                            .withValues(newProgram.toContentValues())
-                            .build());
+                    values = newProgram.toContentValues();
+                    op = ContentProviderOperation.newUpdate(
+                            TvContract.buildProgramUri(mOldPrograms.getProgramId(oldProgram)))
+                            .withValues(values)
+                            .build();
                     oldProgramsIndex++;
                     newProgramsIndex++;
                     mUpdates++;
-                } else if (oldProgram.getEndTimeUtcMillis()
+                } else if (mOldPrograms.getEndTimeUtcMillis(oldProgram)
                         < newProgram.getEndTimeUtcMillis()) {
                     // No match. Remove the old program first to see if the next program in
                     // {@code oldPrograms} partially matches the new program.
-                    ops.add(ContentProviderOperation.newDelete(
-                            TvContract.buildProgramUri(oldProgram.getProgramId()))
-                            .build());
+                    op = ContentProviderOperation.newDelete(
+                            TvContract.buildProgramUri(mOldPrograms.getProgramId(oldProgram)))
+                            .build();
                     oldProgramsIndex++;
                     mDeletions++;
                 } else {
@@ -140,34 +182,41 @@ public class SyncProgramsTask extends AsyncTask<TVHClient.EventList, Void, Boole
             }
 
             if (addNewProgram) {
-                ops.add(ContentProviderOperation
+                values = newProgram.toContentValues();
+                op = ContentProviderOperation
                         .newInsert(TvContract.Programs.CONTENT_URI)
-                        .withValues(newProgram.toContentValues())
-                        .build());
+                        .withValues(values)
+                        .build();
                 mAdditions++;
             }
 
-            // Throttle the batch operation not to cause TransactionTooLargeException.
-            if (ops.size() > 100
-                    || newProgramsIndex >= newProgramsCount) {
-                try {
-                    mContext.getContentResolver().applyBatch(Constants.CONTENT_AUTHORITY, ops);
-                } catch (RemoteException | OperationApplicationException e) {
-                    Log.e(TAG, "Failed to insert programs.", e);
-                    return;
-                }
-                ops.clear();
+            // Batches are sized by bytes, not to cause TransactionTooLargeException.
+            if (op != null && !batcher.add(op, values)) {
+                Log.e(TAG, "Failed to queue programs batch for channel: " + mChannel.toString());
+                return false;
             }
         }
 
+        if (!batcher.flush()) {
+            Log.e(TAG, "Failed to queue programs batch for channel: " + mChannel.toString());
+            return false;
+        }
+
         Log.d(TAG, "Finished updating programs for channel: " + mChannel.toString() + ". A:" + Integer.toString(mAdditions) + ", U:" + Integer.toString(mUpdates) + ", D:" + Integer.toString(mDeletions) + ", NC:" + Integer.toString(mNochange));
+
+        return true;
     }
 
-    private static boolean programEventIdMatches(Program oldProgram, Program newProgram) {
-        final String oldEventId = oldProgram.getInternalProviderData().getEventId();
+    private boolean programEventIdMatches(int oldProgram, Program newProgram) {
+        final String oldEventId = mOldPrograms.getEventId(oldProgram);
         final String newEventId = newProgram.getInternalProviderData().getEventId();
 
-        return oldEventId.equals(newEventId);
+        return newEventId.equals(oldEventId);
+    }
+
+    private boolean programContentMatches(int oldProgram, Program newProgram) {
+        // Programs written before content hashes were stored have a hash of 0, and never match
+        return mOldPrograms.getContentHash(oldProgram) == newProgram.getInternalProviderData().getContentHash();
     }
 
 }
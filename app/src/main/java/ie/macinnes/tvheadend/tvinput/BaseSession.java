@@ -11,7 +11,7 @@ import android.view.Surface;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
-import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.TuneHistory;
 import ie.macinnes.tvheadend.model.Channel;
 
 abstract public class BaseSession extends android.media.tv.TvInputService.Session implements Handler.Callback {
@@ -23,6 +23,7 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
     protected final Context mContext;
     protected final Handler mServiceHandler;
     protected final Handler mSessionHandler;
+    protected final ChannelCache mChannelCache;
     protected final int mSessionNumber;
     private final TvInputManager mTvInputManager;
 
@@ -31,11 +32,15 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
 
     protected PlayChannelRunnable mPlayChannelRunnable;
 
-    public BaseSession(Context context, Handler serviceHandler) {
+    // Bumped by every tune, so a channel looked up for an earlier tune is never played
+    private final AtomicInteger mTuneGeneration = new AtomicInteger();
+
+    public BaseSession(Context context, Handler serviceHandler, ChannelCache channelCache) {
         super(context);
         mContext = context;
 
         mServiceHandler = serviceHandler;
+        mChannelCache = channelCache;
         mSessionHandler = new Handler(this);
 
         mSessionNumber = sSessionCounter.getAndIncrement();
@@ -43,14 +48,38 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
     }
 
     @Override
-    public boolean onTune(Uri channelUri) {
+    public boolean onTune(final Uri channelUri) {
         Log.d(TAG, "Session onTune (" + mSessionNumber + "): " + channelUri.toString());
 
         // Notify we are busy tuning
         notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_TUNING);
 
-        mServiceHandler.removeCallbacks(mPlayChannelRunnable);
-        mPlayChannelRunnable = new PlayChannelRunnable(channelUri);
+        // Remember what's being watched, so the sync can prioritise it. Off the main thread, as
+        // the history lives in multi process preferences, re-read from disk each time.
+        mServiceHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                TuneHistory.recordTune(mContext, channelUri);
+            }
+        });
+
+        if (mPlayChannelRunnable != null) {
+            mServiceHandler.removeCallbacks(mPlayChannelRunnable);
+            mPlayChannelRunnable = null;
+        }
+
+        final int generation = mTuneGeneration.incrementAndGet();
+
+        // Usually the channel is cached, and playback can start without a trip to TvProvider
+        Channel channel = mChannelCache.get(channelUri);
+
+        if (channel != null) {
+            mSessionHandler.removeMessages(MSG_PLAY_CHANNEL);
+            mSessionHandler.obtainMessage(MSG_PLAY_CHANNEL, generation, 0, channel).sendToTarget();
+            return true;
+        }
+
+        mPlayChannelRunnable = new PlayChannelRunnable(channelUri, generation);
         mServiceHandler.post(mPlayChannelRunnable);
 
         return true;
@@ -69,6 +98,9 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
             mServiceHandler.removeCallbacks(mPlayChannelRunnable);
         }
 
+        mTuneGeneration.incrementAndGet();
+        mSessionHandler.removeMessages(MSG_PLAY_CHANNEL);
+
         stopPlayback();
     }
 
@@ -100,6 +132,11 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
     public boolean handleMessage(Message msg) {
         switch (msg.what) {
             case MSG_PLAY_CHANNEL:
+                if (msg.arg1 != mTuneGeneration.get()) {
+                    Log.d(TAG, "Skipping channel from a superseded tune: " + msg.obj);
+                    return true;
+                }
+
                 return playChannel((Channel) msg.obj);
         }
         return false;
@@ -110,18 +147,24 @@ abstract public class BaseSession extends android.media.tv.TvInputService.Sessio
 
     private class PlayChannelRunnable implements Runnable {
         private final Uri mChannelUri;
+        private final int mGeneration;
 
-        public PlayChannelRunnable(Uri channelUri) {
+        public PlayChannelRunnable(Uri channelUri, int generation) {
             mChannelUri = channelUri;
+            mGeneration = generation;
         }
 
         @Override
         public void run() {
-            Channel channel = TvContractUtils.getChannelFromChannelUri(mContext, mChannelUri);
+            Channel channel = mChannelCache.load(mChannelUri);
+
+            if (mGeneration != mTuneGeneration.get()) {
+                // Tuned elsewhere while the channel was loading, leave the newer tune be
+                return;
+            }
 
             if (channel != null) {
-                mSessionHandler.removeMessages(MSG_PLAY_CHANNEL);
-                mSessionHandler.obtainMessage(MSG_PLAY_CHANNEL, channel).sendToTarget();
+                mSessionHandler.obtainMessage(MSG_PLAY_CHANNEL, mGeneration, 0, channel).sendToTarget();
             } else {
                 Log.w(TAG, "Failed to get channel info for " + mChannelUri);
             }
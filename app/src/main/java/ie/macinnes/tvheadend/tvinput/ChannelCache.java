@@ -0,0 +1,135 @@
+/* Copyright 2016 Kiall Mac Innes <kiall@macinnes.ie>
+
+Licensed under the Apache License, Version 2.0 (the "License"); you may
+not use this file except in compliance with the License. You may obtain
+a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+License for the specific language governing permissions and limitations
+under the License.
+*/
+package ie.macinnes.tvheadend.tvinput;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import ie.macinnes.tvheadend.TvContractUtils;
+import ie.macinnes.tvheadend.model.Channel;
+import ie.macinnes.tvheadend.model.ChannelList;
+
+/**
+ * Keeps the metadata needed to tune to each of our channels in memory, so tuning doesn't have to
+ * query TvProvider first. Loaded when the service starts, and reloaded whenever the channels
+ * change.
+ *
+ * Lookups never block: the whole map is replaced on each reload, and read through a volatile.
+ */
+public class ChannelCache {
+    private static final String TAG = ChannelCache.class.getName();
+
+    // Syncs write channels in batches, wait for them to settle before reloading
+    private static final long RELOAD_DELAY_MS = 500;
+
+    private static final String[] PROJECTION = {
+            TvContract.Channels._ID,
+            TvContract.Channels.COLUMN_DISPLAY_NAME,
+            TvContract.Channels.COLUMN_DISPLAY_NUMBER,
+            TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ContentObserver mObserver;
+
+    // Keyed by channel row ID, taken from the channel URI
+    private volatile Map<Long, Channel> mChannels = Collections.emptyMap();
+
+    private final Runnable mReloadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reload();
+        }
+    };
+
+    /**
+     * @param handler Handler for the thread the cache is loaded on, never the main thread
+     */
+    public ChannelCache(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+
+        mObserver = new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mHandler.removeCallbacks(mReloadRunnable);
+                mHandler.postDelayed(mReloadRunnable, RELOAD_DELAY_MS);
+            }
+        };
+    }
+
+    /**
+     * Starts watching for channel changes, and loads the cache.
+     */
+    public void start() {
+        mContext.getContentResolver().registerContentObserver(
+                TvContract.Channels.CONTENT_URI, true, mObserver);
+
+        mHandler.post(mReloadRunnable);
+    }
+
+    public void stop() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mHandler.removeCallbacks(mReloadRunnable);
+    }
+
+    /**
+     * @return the cached channel, or null if it isn't cached (yet).
+     */
+    public Channel get(Uri channelUri) {
+        return mChannels.get(ContentUris.parseId(channelUri));
+    }
+
+    /**
+     * @return the channel, straight from TvProvider if it isn't cached. Must not be called on the
+     *         main thread.
+     */
+    public Channel load(Uri channelUri) {
+        Channel channel = get(channelUri);
+
+        if (channel != null) {
+            return channel;
+        }
+
+        Log.d(TAG, "Channel cache miss for " + channelUri);
+
+        return TvContractUtils.getChannelFromChannelUri(mContext, channelUri);
+    }
+
+    private void reload() {
+        ChannelList channelList = TvContractUtils.getChannels(mContext, PROJECTION);
+        Map<Long, Channel> channels = new HashMap<>(channelList.size());
+
+        for (Channel channel : channelList) {
+            if (channel.getInternalProviderData() != null) {
+                channels.put(channel.getId(), channel);
+            }
+        }
+
+        mChannels = Collections.unmodifiableMap(channels);
+
+        Log.d(TAG, "Loaded " + channels.size() + " channels into the channel cache");
+    }
+}
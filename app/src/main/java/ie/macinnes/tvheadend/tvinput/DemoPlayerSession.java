@@ -51,8 +51,8 @@ public class DemoPlayerSession extends BaseSession implements DemoPlayer.Listene
      *
      * @param context The context of the application
      */
-    public DemoPlayerSession(Context context, Handler serviceHandler) {
-        super(context, serviceHandler);
+    public DemoPlayerSession(Context context, Handler serviceHandler, ChannelCache channelCache) {
+        super(context, serviceHandler, channelCache);
         Log.d(TAG, "Session created (" + mSessionNumber + ")");
     }
 
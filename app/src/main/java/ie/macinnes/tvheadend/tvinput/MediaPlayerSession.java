@@ -43,8 +43,8 @@ public class MediaPlayerSession extends BaseSession {
      *
      * @param context The context of the application
      */
-    public MediaPlayerSession(Context context, Handler serviceHandler) {
-        super(context, serviceHandler);
+    public MediaPlayerSession(Context context, Handler serviceHandler, ChannelCache channelCache) {
+        super(context, serviceHandler, channelCache);
         Log.d(TAG, "Session created (" + mSessionNumber + ")");
     }
 
@@ -29,6 +29,7 @@ public class TvInputService extends android.media.tv.TvInputService {
 
     private HandlerThread mHandlerThread;
     private Handler mHandler;
+    private ChannelCache mChannelCache;
 
     private String mSessionType;
 
@@ -40,6 +41,10 @@ public class TvInputService extends android.media.tv.TvInputService {
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
 
+        // Warm the channel cache before the first tune
+        mChannelCache = new ChannelCache(this, mHandler);
+        mChannelCache.start();
+
         // TODO: Find a better (+ out of UI thread) way to do this.
         MigrateUtils.doMigrate(getBaseContext());
 
@@ -54,6 +59,9 @@ public class TvInputService extends android.media.tv.TvInputService {
     public void onDestroy() {
         super.onDestroy();
 
+        mChannelCache.stop();
+        mChannelCache = null;
+
         mHandlerThread.quit();
         mHandlerThread = null;
         mHandler = null;
@@ -64,11 +72,11 @@ public class TvInputService extends android.media.tv.TvInputService {
         Log.d(TAG, "Creating new TvInputService Session for input ID: " + inputId + ".");
 
         if (mSessionType != null && mSessionType.equals(Constants.SESSION_VLC)) {
-            return new VlcSession(this, mHandler);
+            return new VlcSession(this, mHandler, mChannelCache);
         } else if (mSessionType != null && mSessionType.equals(Constants.SESSION_EXO_PLAYER)) {
-            return new DemoPlayerSession(this, mHandler);
+            return new DemoPlayerSession(this, mHandler, mChannelCache);
         } else {
-            return new MediaPlayerSession(this, mHandler);
+            return new MediaPlayerSession(this, mHandler, mChannelCache);
         }
     }
 
@@ -52,8 +52,8 @@ public class VlcSession extends BaseSession {
      *
      * @param context The context of the application
      */
-    public VlcSession(Context context, Handler serviceHandler) {
-        super(context, serviceHandler);
+    public VlcSession(Context context, Handler serviceHandler, ChannelCache channelCache) {
+        super(context, serviceHandler, channelCache);
         Log.d(TAG, "Session created (" + mSessionNumber + ")");
 
         ArrayList<String> options = new ArrayList<>();